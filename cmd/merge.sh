@@ -66,8 +66,6 @@ if [ $STATUS = 'ok' ]; then
 			fi; 
 		fi;
 	done;
-	TMP2=$TMP.bak;
-	
 	TMP_U=$TMP;			# unix version (original will be OS version)
 	
 	if echo $OSTYPE | grep -i cygwin >/dev/null; then
@@ -85,21 +83,27 @@ if [ $STATUS = 'ok' ]; then
 		if [ -e $arg ] || [ $arg = '--' ]; then echo >&/dev/null; else echo $arg; fi;
 		done;`;
 
-	for file in $FILES; do
+	LAYERS=`for file in $FILES; do
 		if [ $file != $1 ]; then
 			if [ -s $file ]; then
-				echo 1>&2;
-				echo add $file 1>&2;
-				java -cp $CLASSPATH $CoNLLAlign $TMP $file $ARGS -silent > $TMP2;
-				mv $TMP2 $TMP_U;
+				echo $file;
 			fi;
 		fi;
-	done;
-	
+	done;`
+
 	######################
 	# output and cleanup #
 	######################
 
-	cat $TMP_U;
+	if [ -z "$LAYERS" ]; then
+		cat $TMP_U;
+	else
+		for file in $LAYERS; do
+			echo 1>&2;
+			echo add $file 1>&2;
+		done;
+		# N-way mode: all layers are merged in one JVM, cf. CoNLLAlign.mergeAll()
+		java -cp $CLASSPATH $CoNLLAlign $TMP $LAYERS $ARGS -silent;
+	fi;
 	rm $TMP_U;
 fi;
\ No newline at end of file
@@ -0,0 +1,244 @@
+package org.acoli.conll.merge;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import difflib.Delta;
+
+/** self-checks of optimized routines against their reference implementations, on randomized input, and regression checks<br/>
+ * not part of the library, compiled against src/ and run by data/test.selfchecks.sh (in the same package, to reach protected
+ * members), reports every mismatch to stderr and exits with 1 if there is any */
+public class CoNLLSelfChecks {
+
+	/** random source, fixed seed for reproducible runs */
+	protected final Random random;
+
+	/** number of failed checks */
+	protected int failed = 0;
+
+	public CoNLLSelfChecks(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/** labels for IOBES cells: prefixes of each other, with - or IOBES prefixes inside, empty, and a lone tab, so that
+	 * [^+]* extends across cells */
+	protected static final String[] LABELS = { "NP", "N", "NPS", "", "B-NP", "I-", "E-N", "(S", "*)", "X-Y", "\t", "NP\tB-NP" };
+
+	protected static final String[] PREFIXES = { "B-", "I-", "E-", "S-", "O", "" };
+
+	/** a random row of '+'-joined IOBES cells, as aggregated by prune(), mostly with repeated labels so that rules apply */
+	protected String iobesRow() {
+		StringBuilder result = new StringBuilder("w");
+		int cells = 1+random.nextInt(4);
+		for(int c = 0; c<cells; c++) {
+			result.append('\t');
+			String label = LABELS[random.nextInt(LABELS.length)];
+			int annos = 1+random.nextInt(5);
+			for(int a = 0; a<annos; a++) {
+				if(a>0) result.append('+');
+				if(random.nextInt(4)==0) label = LABELS[random.nextInt(LABELS.length)];
+				String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+				result.append(prefix);
+				if(!prefix.equals("O")) result.append(label);
+			}
+		}
+		return result.toString();
+	}
+
+	/** CoNLLAlign.simplifyIOBES() against CoNLLAlign.simplifyIOBESRegex() */
+	public void simplifyIOBES(int rows) {
+		int rewritten = 0;
+		for(int i = 0; i<rows; i++) {
+			String row = iobesRow();
+			String expected = CoNLLAlign.simplifyIOBESRegex(row);
+			String found = CoNLLAlign.simplifyIOBES(row);
+			if(!expected.equals(row)) rewritten++;
+			if(!expected.equals(found))
+				fail("simplifyIOBES(\""+row+"\") returns \""+found+"\", expected \""+expected+"\"");
+		}
+		System.err.println("simplifyIOBES: "+rows+" rows, "+rewritten+" rewritten");
+	}
+
+	/** CoNLLStreamMerger with -window=10 on input where one side ends (without a final empty line) long before the other one,
+	 * must terminate with the token rows of CoNLLAlign */
+	public void streamMergerEOF() throws Exception {
+		StringBuilder tokens = new StringBuilder();
+		for(int i = 1; i<=60; i++)
+			tokens.append("w"+i+"\tY\n");
+		String[][] inputs = { { "w1\tX\nw2\tX\n", tokens.toString() }, { tokens.toString(), "w1\tX\nw2\tX\n" } };
+		ExecutorService pool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread result = new Thread(r);
+				result.setDaemon(true);		// a hanging merge must not keep the JVM alive
+				return result;
+			}
+		});
+		try {
+			for(final String[] input : inputs) {
+				Future<String> merged = pool.submit(new Callable<String>() {
+					public String call() throws Exception {
+						StringWriter out = new StringWriter();
+						new CoNLLStreamMerger(CoNLLAlign.Options.parse(new String[0], 0), 10, false).merge(reader(input[0]), reader(input[1]), out);
+						return out.toString();
+					}
+				});
+				String found;
+				try {
+					found = merged.get(10, TimeUnit.SECONDS);
+				} catch (TimeoutException e) {
+					merged.cancel(true);
+					fail("CoNLLStreamMerger does not terminate on "+input[0].split("\n").length+" vs. "+input[1].split("\n").length+" tokens");
+					continue;
+				}
+				StringWriter expected = new StringWriter();
+				CoNLLAlign.Options options = CoNLLAlign.Options.parse(new String[0], 0);
+				options.merge(table(input[0]), table(input[1]), options.engine(), expected);
+				if(!tokenRows(found).equals(tokenRows(expected.toString())))
+					fail("CoNLLStreamMerger returns "+tokenRows(found)+", expected "+tokenRows(expected.toString()));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		System.err.println("CoNLLStreamMerger at the end of one input: "+inputs.length+" merges");
+	}
+
+	/** CoNLLStreamMerger with -window=10 on input with sentence breaks, mismatches and single-column files: every FILE1 row and
+	 * sentence break and every FILE2 token must be written exactly once and in order, also at window boundaries, and with all
+	 * columns (cf. CoNLLAlign.write()), e.g., a FILE2 row carried over to the next window keeps its *RETOK* cell */
+	public void streamMergerSeams() throws Exception {
+		StringBuilder[] files = { new StringBuilder(), new StringBuilder(), new StringBuilder(), new StringBuilder() };
+		for(int i = 1; i<=60; i++) {
+			files[0].append("w"+i+"\n");
+			files[1].append("w"+i+"\tA"+i+"\n");
+			if(i%7!=3) files[2].append(i%11==5 ? "w"+i+"\nx"+i+"\n" : "w"+i+"\n");
+			if(i%7!=3) files[3].append("w"+i+"\tB"+i+"\n");
+			if(i%5==0) files[0].append("\n");
+			if(i%4==0) files[1].append("\n");
+			if(i%6==0) files[2].append("\n");
+			if(i%5==0) files[3].append("\n");
+		}
+		int[][] inputs = { { 0, 2 }, { 1, 3 }, { 0, 3 }, { 2, 1 } };
+		for(int[] input : inputs) {
+			String file1 = files[input[0]].toString();
+			String file2 = files[input[1]].toString();
+			StringWriter out = new StringWriter();
+			new CoNLLStreamMerger(CoNLLAlign.Options.parse(new String[] { "0", "0", "-drop", "none" }, 0), 10, false)
+				.merge(reader(file1), reader(file2), out);
+
+			// FILE1 rows (first cell, "" for empty lines) and FILE2 tokens as read and as written
+			int width1 = table(file1).width();
+			int width2 = table(file2).width();
+			List<String> rows1 = new ArrayList<String>();
+			for(String line : file1.split("\n"))
+				rows1.add(line.split("\t")[0]);
+			List<String> tokens2 = new ArrayList<String>();
+			for(String line : file2.split("\n"))
+				if(!line.equals("")) tokens2.add(line.split("\t")[0]);
+			List<String> found1 = new ArrayList<String>();
+			List<String> found2 = new ArrayList<String>();
+			for(String line : out.toString().split("\n")) {
+				if(line.startsWith("#")) continue;
+				if(line.equals("")) {
+					found1.add("");
+					continue;
+				}
+				String[] cells = line.split("\t", -1);
+				if(cells.length!=width1+width2)
+					fail("CoNLLStreamMerger writes \""+line+"\" with "+cells.length+" cells, expected "+(width1+width2));
+				if(!cells[0].startsWith("*RETOK*-")) found1.add(cells[0]);
+				if(cells.length>width1 && !cells[width1].equals("?")) found2.add(cells[width1]);
+			}
+			while(found1.size()>0 && found1.get(found1.size()-1).equals("")) found1.remove(found1.size()-1);
+			while(rows1.size()>0 && rows1.get(rows1.size()-1).equals("")) rows1.remove(rows1.size()-1);
+			if(!found1.equals(rows1))
+				fail("CoNLLStreamMerger writes FILE1 rows "+found1+", expected "+rows1);
+			if(!found2.equals(tokens2))
+				fail("CoNLLStreamMerger writes FILE2 tokens "+found2+", expected "+tokens2);
+		}
+		System.err.println("CoNLLStreamMerger at window boundaries: "+inputs.length+" merges");
+	}
+
+	/** CoNLLAlign -split, where FILE2 has an extra token before a sentence break (which OffsetDiff must not move into the
+	 * next sentence) and tokens with equal characters, but different whitespace (which must not match) */
+	public void offsetDiff() throws Exception {
+		String[][] cases = {
+				{ "a\tA\nb\tB\n\nc\tC\nd\tD\n", "a\tA2\nb\tB2\nx\tX2\n\nc\tC2\nd\tD2\n", "",
+					"a\tA\tA2\nb\tB\tB2\n*RETOK*-x\t?\tS-X2\n\nc\tC\tC2\nd\tD\tD2\n" },
+				{ "a\tA\nb\tB\n\nc\tC\nd\tD\n", "a\tA2\nb\tB2\nx\tX2\n\nc\tC2\nd\tD2\n", "-f",
+					"a\tA\tA2\nb\tB\tB2+S-X2\n\nc\tC\tC2\nd\tD\tD2\n" } };
+		for(String[] c : cases) {
+			CoNLLAlign.Options options = CoNLLAlign.Options.parse(("-split "+c[2]).trim().split(" "), 0);
+			StringWriter found = new StringWriter();
+			options.merge(table(c[0]), table(c[1]), options.engine(), found);
+			if(!rows(found.toString()).equals(rows(c[3])))
+				fail("CoNLLAlign -split "+c[2]+" returns "+rows(found.toString())+", expected "+rows(c[3]));
+		}
+		List<Delta> deltas = new OffsetDiff(new MyersDiff()).diff(Arrays.asList("a", "1 000", "b"), Arrays.asList("a", "10 00", "b"));
+		if(deltas.size()!=1 || deltas.get(0).getOriginal().getPosition()!=1 || deltas.get(0).getOriginal().size()!=1 || deltas.get(0).getRevised().size()!=1)
+			fail("OffsetDiff returns "+deltas+" for \"1 000\" vs. \"10 00\", expected a 1:1 delta");
+		System.err.println("OffsetDiff: "+(cases.length+1)+" diffs");
+	}
+
+	private static CoNLLReader reader(String conll) {
+		return new CoNLLReader(new ByteArrayInputStream(conll.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** as CoNLLAlign.readCoNLL() */
+	private static CoNLLTable table(String conll) throws IOException {
+		CoNLLTable result = new CoNLLTable();
+		CoNLLReader in = reader(conll);
+		while(in.next())
+			result.add(in);
+		return result;
+	}
+
+	/** lines other than comments, without leading and trailing empty lines */
+	private static List<String> rows(String output) {
+		List<String> result = new ArrayList<String>();
+		for(String line : output.trim().split("\n"))
+			if(!line.trim().startsWith("#"))
+				result.add(line.trim().equals("") ? "" : line);
+		return result;
+	}
+
+	/** lines other than empty lines and comments */
+	private static List<String> tokenRows(String output) {
+		List<String> result = new ArrayList<String>();
+		for(String line : output.split("\n"))
+			if(!line.trim().equals("") && !line.trim().startsWith("#"))
+				result.add(line);
+		return result;
+	}
+
+	protected void fail(String message) {
+		if(failed++<20)
+			System.err.println("FAILED "+message.replace("\t", "\\t"));
+	}
+
+	public static void main(String[] argv) throws Exception {
+		System.err.println("synopsis: CoNLLSelfChecks [ROWS] [SEED]\n"+
+				"compare optimized routines with their reference implementations on ROWS random inputs (default 100000)");
+		int rows = (argv.length>0 ? Integer.parseInt(argv[0]) : 100000);
+		long seed = (argv.length>1 ? Long.parseLong(argv[1]) : 0L);
+		CoNLLSelfChecks checks = new CoNLLSelfChecks(seed);
+		checks.simplifyIOBES(rows);
+		checks.streamMergerEOF();
+		checks.offsetDiff();
+		checks.streamMergerSeams();
+		System.err.println(checks.failed==0 ? "ok" : checks.failed+" checks failed");
+		if(checks.failed>0) System.exit(1);
+	}
+}
@@ -0,0 +1,17 @@
+#!/bin/bash
+# compare optimized routines with their reference implementations on random input, cf. selfchecks/CoNLLSelfChecks.java
+PATH_SEPARATOR=':';
+if echo $OSTYPE | grep -i 'cygwin' >&/dev/null; then PATH_SEPARATOR=';'; fi;
+CLASSPATH=../src/$PATH_SEPARATOR../lib/diffutils-1.2.1.jar;
+BIN=`mktemp -d`;
+if
+	javac -classpath $CLASSPATH ../src/org/acoli/conll/merge/*.java &&
+	javac -classpath $CLASSPATH -d $BIN selfchecks/CoNLLSelfChecks.java;
+then
+	java -classpath $BIN$PATH_SEPARATOR$CLASSPATH org.acoli.conll.merge.CoNLLSelfChecks $*;
+	STATUS=$?;
+else
+	STATUS=1;
+fi;
+rm -r $BIN;
+exit $STATUS;
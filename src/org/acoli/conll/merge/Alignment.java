@@ -0,0 +1,90 @@
+package org.acoli.conll.merge;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/** alignment model of a merge, as created by CoNLLAlign.align(): links between rows of FILE1 (left) and FILE2 (right), in output order,
+ * with the output rows of every link as cells <br/>
+ * the TSV output of CoNLLAlign.merge() is the concatenation of these rows (pruned with -f), cf. write() */
+public class Alignment extends AbstractList<Alignment.Link> {
+
+	public static enum Type {
+		/** FILE1 row aligned with a FILE2 row (with -split, subtokens of these) */
+		MATCH,
+		/** FILE1 row without FILE2 row, FILE2 columns are filled with ? (or IOBES inference) */
+		LEFT,
+		/** FILE2 row without FILE1 row, i.e., a *RETOK* row or a FILE2 comment */
+		RIGHT
+	}
+
+	public static class Link {
+		/** row index in FILE1, resp. FILE2, -1 if none */
+		public final int left;
+		public final int right;
+		public final Type type;
+
+		/** output rows as cells (none for an empty line), normally one row, none for dropped rows (e.g., FILE2 empty lines),
+		 * two if a FILE2 token aligned with a FILE1 empty line is kept as a comment */
+		public final String[][] rows;
+
+		public Link(int left, int right, String[][] rows) {
+			this.left=left;
+			this.right=right;
+			this.type = left<0 ? Type.RIGHT : right<0 ? Type.LEFT : Type.MATCH;
+			this.rows=rows;
+		}
+
+		public String toString() {
+			return type+"("+left+","+right+")";
+		}
+	}
+
+	protected final List<Link> links = new ArrayList<Link>();
+
+	/** the aligner, for pruning with -f */
+	protected final CoNLLAlign aligner;
+
+	public Alignment(CoNLLAlign aligner) {
+		this.aligner=aligner;
+	}
+
+	public boolean add(Link link) {
+		return links.add(link);
+	}
+
+	public Link get(int i) {
+		return links.get(i);
+	}
+
+	public int size() {
+		return links.size();
+	}
+
+	/** write the output of all links as TSV, if force, prune *RETOK* rows (cf. CoNLLAlign.prune()), out is not closed */
+	public void write(Writer out, boolean force) throws IOException {
+		write(out, 0, size(), force);
+	}
+
+	/** write the output of links from..to (exclusive) as TSV, i.e., cells separated by tabs, if force, prune *RETOK* rows,
+	 * out is not closed */
+	public void write(Writer out, int from, int to, boolean force) throws IOException {
+		Writer myOut = out;
+		if(force)
+			myOut = aligner.new PruneWriter(out);
+		for(Link link : links.subList(from, to))
+			for(String[] row : link.rows) {
+				for(int c = 0; c<row.length; c++) {
+					if(c>0) myOut.write('\t');
+					myOut.write(row[c]);
+				}
+				myOut.write('\n');
+			}
+		if(force)
+			((CoNLLAlign.PruneWriter)myOut).finish();
+		else
+			out.flush();
+	}
+}
@@ -2,70 +2,297 @@ package org.acoli.conll.merge;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import difflib.Delta;
-import difflib.DiffUtils;
+import difflib.DiffAlgorithm;
 
 /** skeleton for alignment routines for CoNLL files, based on Myer's Diff without modifications<br/>
  * specialized sub-routines for treating alignment failures (n:m matches) are implemented in subclasses and 
  * can be enabled via flags of main() */
 public class CoNLLAlign {
 
-	protected final Vector<String[]> conll1;
-	final protected Vector<String[]> conll2;
+	protected final CoNLLTable conll1;
+	final protected CoNLLTable conll2;
 	protected final List<String> forms1;
 	protected final List<String> forms2;
 	protected final List<Delta> deltas;
 	protected final int col1;
 	protected final int col2;
+
+	/** output buffer of write() */
+	protected final StringBuilder row = new StringBuilder();
+
+	/** alignment model filled by write(), null unless created by align() */
+	protected Alignment alignment = null;
+	private char[] rowChars = new char[8192];
+
+	/** cells of the output lines that write() creates for one line, with the end of every output line in cells */
+	private String[] cells = new String[64];
+	private int cellCount = 0;
+	private int[] lineEnds = new int[4];
+	private int lineCount = 0;
 	
 	public CoNLLAlign(File file1, File file2, int col1, int col2) throws IOException {
-		conll1=readCoNLL(file1);
-		conll2=readCoNLL(file2);
+		this(file1, file2, col1, col2, new MyersDiff());
+	}
+
+	/** @param engine diff engine, cf. getEngine() */
+	public CoNLLAlign(File file1, File file2, int col1, int col2, DiffEngine engine) throws IOException {
+		this(readCoNLL(file1), readCoNLL(file2), col1, col2, engine);
+	}
+
+	/** align tables that have already been read */
+	public CoNLLAlign(CoNLLTable conll1, CoNLLTable conll2, int col1, int col2, DiffEngine engine) {
+		this(conll1, conll2, col1, col2, engine.diff(conll1.column(col1), conll2.column(col2)));
+	}
+
+	/** align tables with precomputed deltas between their columns col1 and col2 */
+	public CoNLLAlign(CoNLLTable conll1, CoNLLTable conll2, int col1, int col2, List<Delta> deltas) {
+		this.conll1=conll1;
+		this.conll2=conll2;
 		this.col1=col1;
 		this.col2=col2;
 		forms1 = getCol(conll1,col1);
 		forms2 = getCol(conll2,col2);		
-		deltas = DiffUtils.diff(forms1, forms2).getDeltas();		
+		this.deltas = deltas;
 	}
 
-	/** read and split a CoNLL file */  
-	protected static Vector<String[]> readCoNLL(File file) throws IOException {
-		Vector<String[]> result = new Vector<String[]>();
-		BufferedReader in = new BufferedReader(new FileReader(file));
-		for(String line=in.readLine(); line!=null; line=in.readLine()) {
-			if(line.trim().startsWith("#")) 
-				result.add(new String[]{ line });
-			else 
-				result.add(line.replaceAll("[\t ]*$","").split(" *\t+ *"));
-		}
+	/** diff engine by name: myers (default), linear (linear-space Myers), patience (Myers with unique anchors, parallel),
+	 * sentence (Myers over sentences, then over tokens of unaligned sentences), difflib (java-diff-utils), or the class name of a DiffEngine or difflib.DiffAlgorithm with a public no-argument
+	 * constructor <br/>
+	 * @param budget memory budget of myers and patience in bytes, negative for the default
+	 * @param threads number of threads for patience, non-positive for one per processor */
+	public static DiffEngine getEngine(String name, long budget, int threads) throws ReflectiveOperationException {
+		if(budget<0) budget = Runtime.getRuntime().maxMemory()/4;
+		if(threads<=0) threads = Runtime.getRuntime().availableProcessors();
+		if(name.equalsIgnoreCase("myers"))
+			return new MyersDiff(budget);
+		if(name.equalsIgnoreCase("linear"))
+			return new MyersDiff(0);
+		if(name.equalsIgnoreCase("patience"))
+			return new PatienceDiff(threads, budget);
+		if(name.equalsIgnoreCase("sentence"))
+			return new SentenceDiff(budget);
+		if(name.equalsIgnoreCase("difflib"))
+			return new DiffEngine.Adapter(new difflib.myers.MyersDiff());
+		Object engine = Class.forName(name).getConstructor().newInstance();
+		if(engine instanceof DiffAlgorithm)
+			return new DiffEngine.Adapter((DiffAlgorithm)engine);
+		return (DiffEngine)engine;
+	}
+
+	/** read and split a CoNLL file (UTF-8), cell values are interned per column <br/>
+	 * comments are kept as one cell, otherwise, we split as <code>line.replaceAll("[\t ]*$","").split(" *\t+ *")</code>, cf. CoNLLReader */  
+	protected static CoNLLTable readCoNLL(File file) throws IOException {
+		CoNLLTable result = new CoNLLTable();
+		CoNLLReader in = new CoNLLReader(file);
+		while(in.next())
+			result.add(in);
 		in.close();
 		return result;
 	}
 
-	/** @todo check treatment of col>0 */
-	List<String> getCol(Vector<String[]> conll, int col) {
-		List<String> result = new ArrayList<String>();
-		for(int i = 0; i<conll.size(); i++)
-			if(conll.get(i).length==0) result.add(""); 
-			else if(conll.get(i).length<=col) result.add("");
-			else result.add(conll.get(i)[col]);
+	/** aligner for the flags -split, -maxdelta and -lev of main() */
+	protected static CoNLLAlign create(CoNLLTable conll1, CoNLLTable conll2, int col1, int col2, List<Delta> deltas, boolean split, int maxDelta, boolean lev) {
+		if(split) {
+			CoNLLAlignSubTok result = new CoNLLAlignSubTok(conll1, conll2, col1, col2, deltas);
+			result.maxDelta=maxDelta;
+			return result;
+		}
+		if(lev)
+			return new CoNLLAlignSimilarText(conll1, conll2, col1, col2, deltas);
+		/* if(giza)
+			return new CoNLLAlignGIZA(conll1, conll2, col1, col2, src2tgtText, tgt2srcText, src2tgtDict, tgt2srcDict); */
+		return new CoNLLAlign(conll1, conll2, col1, col2, deltas);
+	}
+
+	/** N-way merge in one JVM: the first file is the pivot, every other file is aligned with the merged result so far
+	 * and its columns are appended, with the same result as iterated calls of main() (cf. cmd/merge.sh)<br/>
+	 * all files are read in parallel. With force, the merged result keeps the col1 of the pivot (unless the pivot has
+	 * comments), so the diffs of all other files against the pivot are computed in parallel. These are used as long as the
+	 * merged result has the same col1 as the pivot, otherwise, we diff against the merged result. Without force, diffs
+	 * run one at a time. Intermediate results are kept in memory, only the final result is written to out.<br/>
+	 * with force, the engine is shared by parallel diffs, its memory budget should be set accordingly
+	 * @param split as flag -split of main()
+	 * @param lev as flag -lev of main()
+	 * @param threads number of threads for reading and diffing, non-positive for one per processor */
+	public static void mergeAll(List<File> files, final int col1, final int col2, Set<Integer> dropCols, boolean force, boolean split, boolean lev,
+			final DiffEngine engine, int threads, Writer out) throws IOException {
+		mergeAll(files, col1, col2, dropCols, force, split, CoNLLAlignSubTok.MAX_DELTA, lev, engine, threads, out);
+	}
+
+	/** mergeAll() with the maximum number of characters of a delta that is split into subtokens with -split, cf. CoNLLAlignSubTok.mergeDelta() */
+	public static void mergeAll(List<File> files, final int col1, final int col2, Set<Integer> dropCols, boolean force, boolean split, int maxDelta, boolean lev,
+			final DiffEngine engine, int threads, Writer out) throws IOException {
+		if(threads<=0) threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+		try {
+			List<Future<CoNLLTable>> tables = new ArrayList<Future<CoNLLTable>>();
+			for(final File file : files)
+				tables.add(pool.submit(new Callable<CoNLLTable>() {
+					public CoNLLTable call() throws IOException {
+						return readCoNLL(file);
+					}
+				}));
+			final Future<CoNLLTable> pivot = tables.get(0);
+			List<Future<List<Delta>>> diffs = new ArrayList<Future<List<Delta>>>();
+			if(force)		// otherwise, the merged result rarely keeps the pivot col, and running diffs cannot be cancelled
+				for(final Future<CoNLLTable> table : tables.subList(1, tables.size()))		// all tables are being read when these start
+					diffs.add(pool.submit(new Callable<List<Delta>>() {
+						public List<Delta> call() throws Exception {
+							return engine.diff(pivot.get().column(col1), table.get().column(col2));
+						}
+					}));
+
+			CoNLLTable merged = get(pivot);
+			boolean pivotCol = force;
+			for(int i = 1; i<tables.size(); i++) {
+				CoNLLTable next = get(tables.get(i));
+				List<Delta> deltas;
+				if(pivotCol && (i==1 || isPivotCol(merged, get(pivot), col1))) {
+					deltas = get(diffs.get(i-1));
+				} else {
+					if(pivotCol)		// merged rows are never removed again
+						for(Future<List<Delta>> diff : diffs)
+							diff.cancel(true);
+					pivotCol = false;
+					deltas = engine.diff(merged.column(col1), next.column(col2));
+				}
+				CoNLLAlign me = create(merged, next, col1, col2, deltas, split, maxDelta, lev);
+				if(i+1==tables.size()) {
+					me.merge(out, dropCols, force);
+				} else {
+					merged = new CoNLLTable();
+					LineWriter mergedOut = merged.writer();
+					me.merge(mergedOut, dropCols, force);
+					mergedOut.close();
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** split conll before every row whose first cell matches boundary, the first table holds the rows before the first boundary */
+	protected static List<CoNLLTable> split(CoNLLTable conll, Pattern boundary) {
+		List<CoNLLTable> result = new ArrayList<CoNLLTable>();
+		CoNLLTable doc = new CoNLLTable();
+		for(int row = 0; row<conll.size(); row++) {
+			if(conll.length(row)>0 && boundary.matcher(conll.get(row, 0)).find()) {
+				result.add(doc);
+				doc = new CoNLLTable();
+			}
+			doc.add(conll.get(row));
+		}
+		result.add(doc);
 		return result;
 	}
+
+	/** true if col of merged has the same values as col of pivot */
+	private static boolean isPivotCol(CoNLLTable merged, CoNLLTable pivot, int col) {
+		int[][] ids = merged.column(col).encode(pivot.column(col));
+		return Arrays.equals(ids[0], ids[1]);
+	}
+
+	/** result of a task, passes on its IOException or RuntimeException */
+	static <T> T get(Future<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			if(e.getCause() instanceof Error) throw (Error)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/** @todo check treatment of col>0 <br/>
+	 * returns a view, rows without col yield "" */
+	List<String> getCol(CoNLLTable conll, int col) {
+		return conll.column(col);
+	}
 	
+	/** align without TSV output, returns the alignment model, from which merge(out, dropCols, false) is written, cf. Alignment */
+	public Alignment align(Set<Integer> dropCols) throws IOException {
+		alignment = new Alignment(this);
+		try {
+			merge(new LineWriter() {
+				public void line(String line) {
+				}
+			}, dropCols, false);
+			return alignment;
+		} finally {
+			alignment = null;
+		}
+	}
+
+	/** rows of one side of merge(), with their row index in the file of this side (FILE1 for left, FILE2 for right), for the
+	 * alignment model. Rows added without index (e.g., debug comments) are not linked */
+	protected static class Rows extends AbstractList<String[]> {
+		protected final List<String[]> rows = new ArrayList<String[]>();
+
+		/** row index, -1 if none, -2-index for rows of the other file (e.g., FILE2 comments kept on the left side) */
+		protected int[] sources = new int[64];
+
+		public String[] get(int i) {
+			return rows.get(i);
+		}
+
+		public int size() {
+			return rows.size();
+		}
+
+		public void clear() {
+			rows.clear();
+		}
+
+		public boolean add(String[] row) {
+			return add(row, -1);
+		}
+
+		public boolean add(String[] row, int index) {
+			if(size()==sources.length) sources = Arrays.copyOf(sources, 2*sources.length);
+			sources[size()]=index;
+			return rows.add(row);
+		}
+
+		public boolean addOther(String[] row, int index) {
+			return add(row, -2-index);
+		}
+
+		public boolean addAll(Collection<? extends String[]> rows) {
+			int r = 0;
+			for(String[] row : rows)
+				add(row, rows instanceof Rows ? ((Rows)rows).sources[r++] : -1);
+			return !rows.isEmpty();
+		}
+	}
+
 	/** given two CoNLL files, perform token-level merge using Myer's diff, adopt the tokenization of the first <br/>
 	 * tokenization mismatches from the second are represented by "empty" PTB words prefixed with *RETOK*-...
 	 */
@@ -76,12 +303,12 @@ public class CoNLLAlign {
 		
 		Writer myOut = out;
 		if(force)
-			myOut = new StringWriter();
+			myOut = new PruneWriter(out);
 		
 		boolean debug=false;
 	
-		Vector<String[]> left = new Vector<String[]>();
-		Vector<String[]> right = new Vector<String[]>();
+		Rows left = new Rows();
+		Rows right = new Rows();
 		while(i<conll1.size() && j<conll2.size()) {
 	
 			// build left and right
@@ -96,38 +323,38 @@ public class CoNLLAlign {
 			}
 			
 			if(delta!=null && delta.getOriginal().getPosition()==i && delta.getOriginal().size()==1 && 
-				conll1.get(i).length==1 && conll1.get(i)[0].trim().equals("") && delta.getType().equals(Delta.TYPE.CHANGE)) {
+				conll1.length(i)==1 && conll1.get(i, 0).trim().equals("") && delta.getType().equals(Delta.TYPE.CHANGE)) {
 				// left.add(new String[] { "# override empty line replacement"});
 				// right.add(null);
-				left.add(conll1.get(i++));
+				left.add(conll1.get(i), i++);
 				right.add(null);
 				for(int r = 0; r<delta.getRevised().size(); r++) {
 					left.add(null);
-					right.add(conll2.get(j++));
+					right.add(conll2.get(j), j++);
 				}
 				d++;
 			} else if(delta!=null && delta.getOriginal().getPosition()==i && delta.getOriginal().size()==1 && 
-				conll1.get(i).length>0 && conll1.get(i)[0].trim().startsWith("#") && delta.getType().equals(Delta.TYPE.CHANGE)) {
+				conll1.length(i)>0 && conll1.get(i, 0).trim().startsWith("#") && delta.getType().equals(Delta.TYPE.CHANGE)) {
 				// left.add(new String[] { "# override comment replacement"});
 				// right.add(null);
-				left.add(conll1.get(i++));
+				left.add(conll1.get(i), i++);
 				right.add(null);
 				for(int r = 0; r<delta.getRevised().size(); r++) {
 					left.add(null);
-					right.add(conll2.get(j++));
+					right.add(conll2.get(j), j++);
 				}
 				d++;
 			} else if(delta==null || delta.getOriginal().getPosition()>i) {					// no change
-				left.add(conll1.get(i++));
-				right.add(conll2.get(j++));
+				left.add(conll1.get(i), i++);
+				right.add(conll2.get(j), j++);
 			} else if (delta.getOriginal().size()*delta.getRevised().size()==1) { 		// 1:1 replacements
-				left.add(conll1.get(i++));
-				if(conll2.get(j)!=null && conll2.get(j).length==1 && conll2.get(j)[0].trim().startsWith("#")) {			// keep right-side comments
+				left.add(conll1.get(i), i++);
+				if(conll2.length(j)==1 && conll2.get(j, 0).trim().startsWith("#")) {			// keep right-side comments
 					right.add(null);
-					left.add(conll2.get(j));
+					left.addOther(conll2.get(j), j);
 					right.add(null);
-				} else if(conll2.get(j)!=null && conll2.get(j).length > col2 && !conll2.get(j)[col2].equals(""))		// drop empty lines on the right
-					right.add(conll2.get(j));
+				} else if(conll2.length(j) > col2 && !conll2.get(j, col2).equals(""))		// drop empty lines on the right
+					right.add(conll2.get(j), j);
 				else right.add(null);
 				j++;
 				d++;
@@ -135,13 +362,13 @@ public class CoNLLAlign {
 				d++;														// just written one after another, with *RETOK*-...
 				
 					for(int o=0; o<delta.getOriginal().size(); o++) {
-						left.add(conll1.get(i++));
+						left.add(conll1.get(i), i++);
 						right.add(null);
 						// out.write(">"+Arrays.asList(conll1.get(i++))+"\n");
 					}
 					for(int r = 0; r<delta.getRevised().size(); r++) {
 						left.add(null);
-						right.add(conll2.get(j++));
+						right.add(conll2.get(j), j++);
 						//out.write("<"+Arrays.asList(conll2.get(j++))+"\n");
 					}
 			}
@@ -156,15 +383,24 @@ public class CoNLLAlign {
 		}
 		
 		if(force)
-			prune(out,new StringReader(myOut.toString()));
+			((PruneWriter)myOut).finish();
+		else
+			out.flush();
 	}
 	
 	/** internally called by merge() <br/>
-    note that in addition to filling up null lines with ?, it also attempts to restore IOBES annotations
+    note that in addition to filling up null lines with ?, it also attempts to restore IOBES annotations <br/>
+    the last and next values per column are tracked while writing (linear in the number of cells)
 	 */
-	protected void write(Vector<String[]> left, Vector<String[]> right, Set<Integer> dropCols, Writer out) throws IOException {
-			int leftLength = 0;  for(String[] l : left)  if(l!=null && l.length>leftLength)  leftLength=l.length;
-			int rightLength = 0; for(String[] l : right) if(l!=null && l.length>rightLength) rightLength=l.length;
+	protected void write(List<String[]> left, List<String[]> right, Set<Integer> dropCols, Writer out) throws IOException {
+			// at least the columns of the input, also for sentences without rows of one side
+			int leftLength = conll1.width();  for(String[] l : left)  if(l!=null && l.length>leftLength)  leftLength=l.length;
+			int rightLength = conll2.width(); for(String[] l : right) if(l!=null && l.length>rightLength) rightLength=l.length;
+			
+			String[] lastLeft = new String[leftLength];		// last value per column before line
+			String[] lastRight = new String[rightLength];
+			int[] nextLeft = new int[leftLength];			// next line with a value per column, valid if >line
+			int[] nextRight = new int[rightLength];
 			
 			for(int line = 0; line<left.size(); line++) {
 				
@@ -177,39 +413,39 @@ public class CoNLLAlign {
 				
 				// keep empty lines if one on the left
 				if((( left.get(line)!=null && (left.get(line).length==0 || left.get(line).length==1 && left.get(line)[0].trim().equals("")) )) && (right.get(line)==null || right.get(line).length==0 || (right.get(line).length==1 && right.get(line)[0].trim().equals("")))) {
-					out.write("\n");
+					endLine();
 				} else if((( left.get(line)!=null && (left.get(line).length==0 || left.get(line).length==1 && left.get(line)[0].trim().equals("")) )) && ((right.get(line).length==1 && col2==0 && !right.get(line)[0].trim().equals("")))) {
-					out.write("\n");
-					out.write("# "+right.get(line)[0]+"\n");		// this is a misalignment, keep original token as comment
+					endLine();
+					cell("# "+right.get(line)[0]);		// this is a misalignment, keep original token as comment
+					endLine();
 				} else if(left.get(line)==null && right.get(line).length==1 && right.get(line)[0].trim().equals("")) {
 					// nothing (insertions of empty lines from the right)
 				} else {
 					
-					// write left side
+					// write left side, value is the current cell (if any)
+					String value = null;
 					for(int col = 0; col<leftLength; col++) {
-						String lastValue = null;									
-						for(int a = line-1; a>=0 && lastValue==null; a--)
-							if(left.get(a)!=null && left.get(a).length>col) lastValue=left.get(a)[col];
-						String nextValue = null;
-						for(int a = line+1; a<left.size() && nextValue==null; a++)
-							if(left.get(a)!=null && left.get(a).length>col) nextValue=left.get(a)[col];
-
 						if((left.get(line)==null) ||
 						   col>=left.get(line).length) {
 							   if(right.get(line)==null || !right.get(line)[0].trim().startsWith("#")) {
+									String lastValue = lastLeft[col];
+									if(nextLeft[col]<=line) nextLeft[col]=next(left, col, line, nextLeft[col]);
+									String nextValue = (nextLeft[col]<left.size() ? left.get(nextLeft[col])[col] : null);
 									if(col==col1 && right.get(line)!=null && right.get(line).length>col2)
-										out.write("*RETOK*-"+right.get(line)[col2]); 
-									else if(lastValue!=null && lastValue.matches("^[BI]-.*") && nextValue!=null && 
-									   nextValue.substring(0,1).matches("^[IE]") && nextValue.substring(1).equals(lastValue.replaceFirst("^.",""))) {
-										out.write("I"+lastValue.replaceFirst("^.",""));								// IOBES inference/repair
+										value = "*RETOK*-"+right.get(line)[col2]; 
+									else if(isIOBESGap(lastValue, nextValue)) {
+										value = "I"+lastValue.substring(1);								// IOBES inference/repair
 									} else {
-										out.write("?");								// default (no IOBES inference)
+										value = "?";								// default (no IOBES inference)
 									};
 							   }
 						   } else {
-							   out.write(left.get(line)[col]);
+							   value = left.get(line)[col];
 						   }
-						if(left.get(line)!=null || !right.get(line)[0].trim().startsWith("#")) out.write("\t");
+						if(left.get(line)!=null || !right.get(line)[0].trim().startsWith("#")) {
+							cell(value);
+							value = null;
+						}
 					}
 					
 					// write right side
@@ -217,8 +453,11 @@ public class CoNLLAlign {
 					if(right.get(line)!=null) {
 						while(col<right.get(line).length) {
 							if(!dropCols.contains(col)) { 
-								out.write(right.get(line)[col]);
-								if(col<rightLength-1) out.write("\t");
+								value = right.get(line)[col];
+								if(col<rightLength-1) {
+									cell(value);
+									value = null;
+								}
 							}
 							col++;
 						}
@@ -227,27 +466,104 @@ public class CoNLLAlign {
 						while(col<rightLength) {
 							if(!dropCols.contains(col)) {
 								
-								String lastValue = null;									
-								for(int a = line-1; a>=0 && lastValue==null; a--)
-									if(right.get(a)!=null && right.get(a).length>col) lastValue=right.get(a)[col];										
-								String nextValue = null;
-								for(int a = line+1; a<right.size() && nextValue==null; a++)
-									if(right.get(a)!=null && right.get(a).length>col) nextValue=right.get(a)[col];										
-								if(lastValue!=null && lastValue.matches("^[BI]-.*") && nextValue!=null && 
-								   nextValue.substring(0,1).matches("^[IE]") && nextValue.substring(1).equals(lastValue.replaceFirst("^.",""))) {
-									out.write("I"+lastValue.replaceFirst("^.",""));									// IOBES inference/repair
+								String lastValue = lastRight[col];
+								if(nextRight[col]<=line) nextRight[col]=next(right, col, line, nextRight[col]);
+								String nextValue = (nextRight[col]<right.size() ? right.get(nextRight[col])[col] : null);
+								if(isIOBESGap(lastValue, nextValue)) {
+									value = "I"+lastValue.substring(1);									// IOBES inference/repair
 								} else {
-									out.write("?");									// default (no IOBES inference)
+									value = "?";									// default (no IOBES inference)
 								};
 
-								if(col<rightLength-1) out.write("\t");
+								if(col<rightLength-1) {
+									cell(value);
+									value = null;
+								}
 							}
 							col++;
 						}
-					out.write("\n");
+					cell(value);
+					endLine();
 				}
-				out.flush();
+				writeLines(left, right, line);
+				if(row.length()>=8192) writeRow(out);
+				
+				if(left.get(line)!=null)
+					for(int col = 0; col<left.get(line).length; col++)
+						lastLeft[col]=left.get(line)[col];
+				if(right.get(line)!=null)
+					for(int col = 0; col<right.get(line).length; col++)
+						lastRight[col]=right.get(line)[col];
 			}
+			writeRow(out);
+	}
+
+	/** add a cell to the current output line of write(), null for an empty cell */
+	private void cell(String value) {
+		if(cellCount==cells.length) cells = Arrays.copyOf(cells, 2*cells.length);
+		cells[cellCount++] = (value==null ? "" : value);
+	}
+
+	/** end the current output line of write() */
+	private void endLine() {
+		if(lineCount==lineEnds.length) lineEnds = Arrays.copyOf(lineEnds, 2*lineEnds.length);
+		lineEnds[lineCount++] = cellCount;
+	}
+
+	/** write the output lines of line as TSV to the row buffer and add their link to the alignment model, if any */
+	private void writeLines(List<String[]> left, List<String[]> right, int line) {
+		for(int l = 0, c = 0; l<lineCount; l++) {
+			for(int start = c; c<lineEnds[l]; c++) {
+				if(c>start) row.append('\t');
+				row.append(cells[c]);
+			}
+			row.append('\n');
+		}
+		if(alignment!=null) link(left, right, line);
+		cellCount = 0;
+		lineCount = 0;
+	}
+
+	/** add the link for line to the alignment model, with its output lines */
+	private void link(List<String[]> left, List<String[]> right, int line) {
+		int l = left instanceof Rows ? ((Rows)left).sources[line] : -1;
+		int r = right instanceof Rows ? ((Rows)right).sources[line] : -1;
+		if(r<0 && l<-1) r = -2-l;
+		if(l<0 && r<0) return;
+		String[][] rows = new String[lineCount][];
+		for(int i = 0; i<lineCount; i++)
+			rows[i] = Arrays.copyOfRange(cells, i>0 ? lineEnds[i-1] : 0, lineEnds[i]);
+		alignment.add(new Alignment.Link(Math.max(l, -1), r, rows));
+	}
+
+	/** write the row buffer with a single call and clear it */
+	protected void writeRow(Writer out) throws IOException {
+		if(rowChars.length<row.length()) rowChars = new char[Math.max(2*rowChars.length, row.length())];
+		row.getChars(0, row.length(), rowChars, 0);
+		out.write(rowChars, 0, row.length());
+		row.setLength(0);
+	}
+	
+	/** first line after line (and not before from) that has a value in col, lines.size() if none */
+	private static int next(List<String[]> lines, int col, int line, int from) {
+		int a = Math.max(line+1, from);
+		while(a<lines.size() && (lines.get(a)==null || lines.get(a).length<=col))
+			a++;
+		return a;
+	}
+	
+	/** gap between an IOBES B- or I- and the I- or E- of the same label, i.e. <code>lastValue.matches("^[BI]-.*") &&
+	 * nextValue.substring(0,1).matches("^[IE]") && nextValue.substring(1).equals(lastValue.substring(1))</code> */
+	protected static boolean isIOBESGap(String lastValue, String nextValue) {
+		if(lastValue==null || nextValue==null) return false;
+		if(lastValue.length()<2 || (lastValue.charAt(0)!='B' && lastValue.charAt(0)!='I') || lastValue.charAt(1)!='-')
+			return false;
+		for(int i = 2; i<lastValue.length(); i++) {	// . does not match line terminators
+			char c = lastValue.charAt(i);
+			if(c=='\n' || c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029') return false;
+		}
+		char c = nextValue.charAt(0);
+		return (c=='I' || c=='E') && nextValue.regionMatches(1, lastValue, 1, lastValue.length()-1) && nextValue.length()==lastValue.length();
 	}
 	
 	/** run merge() or split(), remove all comments, merge *RETOK*-... tokens with preceding token (or following, if no preceding found)<br>
@@ -263,61 +579,262 @@ public class CoNLLAlign {
 	when merging multiple lines, we replace the (non-first) * placeholder of *RETOK* lines with the original FORM		
 	 */
 	protected void prune(Writer out, Reader mergedIn) throws IOException {
-		
-		// strategy: merge *RETOK*s with last token; if none available, merge with the next token
 		BufferedReader in = new BufferedReader(mergedIn);
-		String lastLine = "";
-		for(String line = in.readLine(); line!=null; line=in.readLine()) {
+		PruneWriter pruner = new PruneWriter(out);
+		for(String line = in.readLine(); line!=null; line=in.readLine())
+			pruner.line(line);
+		pruner.finish();
+	}
+
+	/** streaming version of prune(): merged lines are pruned as they are written, without buffering the merged output<br/>
+	 * only the last token row is kept, its cells are kept in StringBuilders, so that aggregating many *RETOK* rows
+	 * costs linear time. Call finish() at the end to write the last row, this does not close out. */
+	protected class PruneWriter extends LineWriter {
+
+		protected final Writer out;
+
+		/** last row, either as a line (as read) or, if lastLine is null, as its cells */
+		protected String lastLine = "";
+		protected StringBuilder[] last = new StringBuilder[0];
+		protected int lastSize = 0;
+
+		/** true if the cells are <code>lastLine.split(" *\t+ *")</code> */
+		protected boolean split = false;
+
+		public PruneWriter(Writer out) {
+			this.out=out;
+		}
+
+		/** strategy: merge *RETOK*s with last token; if none available, merge with the next token */
+		public void line(String line) throws IOException {
 			if(line.trim().equals("")) {
-				out.write(simplifyIOBES(lastLine)+"\n");
-				lastLine=line;
+				writeLast();
+				setLast(line);
 			} else if(!line.trim().startsWith("#")) {
-				String fields[] = line.split(" *\t+ *");
-				String last[] = lastLine.split(" *\t+ *");
+				String fields[] = splitCells(line);
 				if(fields[col1].startsWith("*RETOK*-")) {
-					if(lastLine.trim().equals("")) {
-						lastLine=line;
+					if(isLastEmpty()) {
+						setLast(line);
 					} else {
-						for(int i = 0; i<last.length; i++) 
+						splitLast();
+						for(int i = 0; i<lastSize; i++)
 							if(i!=col1 && i<fields.length) {
 								if(fields[i].contains("*"))
 									fields[i]=fields[i].substring(0,fields[i].indexOf("*"))+fields[col1]+fields[i].substring(fields[i].indexOf("*")+1);
-								if(last[i].equals("?")) last[i]=fields[i];
-								else if(!fields[i].equals("?"))
-									last[i]= last[i]+"+"+fields[i];
+								if(last[i].length()==1 && last[i].charAt(0)=='?') {
+									last[i].setLength(0);
+									last[i].append(fields[i]);
+								} else if(!fields[i].equals("?"))
+									last[i].append('+').append(fields[i]);
 							}
-						lastLine="";
-						for(String s : last)
-							lastLine=lastLine+s+"\t";
-						lastLine=lastLine.replaceFirst("\t$","");
+						lastLine=null;
 					}
-				} else if(last.length> col1 && last[col1].startsWith("*RETOK*-")) {	// only if sentence initial
-						for(int i = 0; i<last.length; i++)
+				} else if(lastCells()>col1 && startsWith(lastCell(col1), "*RETOK*-")) {	// only if sentence initial
+						splitLast();
+						String retok = last[col1].toString();
+						for(int i = 0; i<lastSize; i++)
 							if(i!=col1 && i<fields.length) {
-								if(last[i].contains("*"))
-									last[i]=last[i].substring(0,last[i].indexOf("*"))+last[col1]+last[i].substring(last[i].indexOf("*")+1);
-								if(fields[i].equals("?")) 
-									fields[i]=last[i];
-								else if(!last[i].equals("?"))
-									fields[i]=last[i]+"+"+fields[i];
+								String l = last[i].toString();
+								if(l.contains("*"))
+									l=l.substring(0,l.indexOf("*"))+retok+l.substring(l.indexOf("*")+1);
+								if(fields[i].equals("?"))
+									fields[i]=l;
+								else if(!l.equals("?"))
+									fields[i]=l+"+"+fields[i];
 							}
-						lastLine="";
-						for(String s : fields)
-							lastLine=lastLine+s+"\t";
-						lastLine=lastLine.replaceFirst("\t$","");
+						setLast(fields);
 				} else {
-					out.write(simplifyIOBES(lastLine)+"\n");
-					lastLine=line;
-					out.flush();
+					writeLast();
+					setLast(line);
+				}
+			}
+		}
+
+		/** write the last row */
+		public void finish() throws IOException {
+			super.close();
+			writeLast();
+			out.flush();
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		/** same as finish() */
+		public void close() throws IOException {
+			finish();
+		}
+
+		protected void writeLast() throws IOException {
+			out.write(simplifyIOBES(lastLine()));
+			out.write('\n');
+		}
+
+		protected String lastLine() {
+			if(lastLine!=null) return lastLine;
+			StringBuilder result = new StringBuilder();
+			for(int i = 0; i<lastSize; i++) {
+				if(i>0) result.append('\t');
+				result.append(last[i]);
+			}
+			return result.toString();
+		}
+
+		/** <code>lastLine.trim().equals("")</code> */
+		protected boolean isLastEmpty() {
+			if(lastLine!=null) return lastLine.trim().equals("");
+			for(int i = 0; i<lastSize; i++)
+				for(int j = 0; j<last[i].length(); j++)
+					if(last[i].charAt(j)>' ') return false;
+			return true;
+		}
+
+		protected int lastCells() {
+			splitLast();
+			return lastSize;
+		}
+
+		protected CharSequence lastCell(int i) {
+			splitLast();
+			return last[i];
+		}
+
+		/** make sure that the cells are what splitting the last row would return<br/>
+		 * if the cells are the row (after merging), we only rebuild the row for cells with leading or trailing
+		 * blanks or empty cells after the first, where splitting would change them */
+		protected void splitLast() {
+			if(lastLine==null) {
+				for(int i = 0; i<lastSize && lastLine==null; i++) {
+					int l = last[i].length();
+					if((i>0 && (l==0 || last[i].charAt(0)==' ')) || (i<lastSize-1 && l>0 && last[i].charAt(l-1)==' '))
+						lastLine=lastLine();
 				}
+				if(lastLine==null) return;
+				split=false;
+			}
+			if(!split) {
+				load(splitCells(lastLine));
+				split=true;
+			}
+		}
+
+		/** the last row is a line (as read) */
+		protected void setLast(String line) {
+			lastLine=line;
+			split=false;
+		}
+
+		/** the last row consists of these cells */
+		protected void setLast(String[] cells) {
+			load(cells);
+			lastLine=null;
+		}
+
+		protected void load(String[] cells) {
+			if(cells.length>last.length) {
+				last = Arrays.copyOf(last, cells.length);
+				for(int i = 0; i<last.length; i++)
+					if(last[i]==null) last[i] = new StringBuilder();
+			}
+			for(int i = 0; i<cells.length; i++) {
+				last[i].setLength(0);
+				last[i].append(cells[i]);
 			}
+			lastSize=cells.length;
 		}
-		out.write(simplifyIOBES(lastLine)+"\n");
-		out.flush();
 	}
 
-	/** simplify IOBES annotations before merging lines in prune() */
+	/** same as <code>line.split(" *\t+ *")</code>, without regex */
+	protected static String[] splitCells(String line) {
+		ArrayList<String> result = new ArrayList<String>();
+		int p = 0;
+		int t = line.indexOf('\t');
+		while(t>=0) {
+			int s = t;
+			while(s>p && line.charAt(s-1)==' ') s--;
+			result.add(line.substring(p, s));
+			while(t<line.length() && line.charAt(t)=='\t') t++;
+			while(t<line.length() && line.charAt(t)==' ') t++;
+			p=t;
+			t=line.indexOf('\t', p);
+		}
+		if(result.isEmpty()) return new String[] { line };	// no match
+		result.add(line.substring(p));
+		int size = result.size();
+		while(size>0 && result.get(size-1).length()==0) size--;	// drop trailing empty strings
+		return result.subList(0, size).toArray(new String[size]);
+	}
+
+	private static boolean startsWith(CharSequence s, String prefix) {
+		if(s.length()<prefix.length()) return false;
+		for(int i = 0; i<prefix.length(); i++)
+			if(s.charAt(i)!=prefix.charAt(i)) return false;
+		return true;
+	}
+
+	/** simplify IOBES annotations before merging lines in prune()<br/>
+	 * hand-written version of simplifyIOBESRegex(): every rule is a single scan over the row that compacts it in place,
+	 * repeated only as long as it still changes the row (as the regex loops do). Rows without + are returned as they are,
+	 * rows with line terminators (where . does not match) are left to the regex version. */
 	protected static String simplifyIOBES(String line) {
+		if(line.indexOf('+')<0) return line;
+		for(int i = 0; i<line.length(); i++) {
+			char c = line.charAt(i);
+			if(c=='\n' || c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029')
+				return simplifyIOBESRegex(line);
+		}
+		char[] buf = line.toCharArray();
+		int length = buf.length;
+		for(int rule = 1; rule<=3; rule++)
+			for(int n = simplifyIOBES(buf, length, rule); n<length; n = simplifyIOBES(buf, length, rule))
+				length=n;
+		if(length==buf.length) return line;
+		return new String(buf, 0, length);
+	}
+
+	/** one replaceAll() of simplifyIOBESRegex() on buf[0..length], returns the new length, with rules<br/>
+	 * 1: \t[IB]-L+I-L =&gt; \t[IB]-L<br/>
+	 * 2: \tB-L+E-L =&gt; \tL<br/>
+	 * 3: \tI-L+E-L =&gt; \tE-L<br/>
+	 * where L extends up to the next + (as [^+]* does, also across tabs) */
+	private static int simplifyIOBES(char[] buf, int length, int rule) {
+		int w = 0;
+		int r = 0;
+		while(r<length) {
+			if(buf[r]=='\t' && r+2<length && buf[r+2]=='-') {
+				char c = buf[r+1];
+				if(rule==1 ? (c=='I' || c=='B') : rule==2 ? c=='B' : c=='I') {
+					int s = r+3;
+					int e = s;
+					while(e<length && buf[e]!='+') e++;
+					int l = e-s;
+					if(e+3+l<=length && buf[e+1]==(rule==1 ? 'I' : 'E') && buf[e+2]=='-' && regionMatches(buf, s, e+3, l)) {
+						buf[w++]='\t';		// w<=r, so we only write over what we have read
+						if(rule!=2) {
+							buf[w++] = (rule==3 ? 'E' : c);
+							buf[w++] = '-';
+						}
+						System.arraycopy(buf, s, buf, w, l);
+						w+=l;
+						r=e+3+l;
+						continue;
+					}
+				}
+			}
+			buf[w++]=buf[r++];
+		}
+		return w;
+	}
+
+	private static boolean regionMatches(char[] buf, int from, int otherFrom, int length) {
+		for(int i = 0; i<length; i++)
+			if(buf[from+i]!=buf[otherFrom+i]) return false;
+		return true;
+	}
+
+	/** regex version of simplifyIOBES() */
+	protected static String simplifyIOBESRegex(String line) {
 		try {
 			while(line.matches(".*\t[IB]-([^+]*)\\+I-\\1.*"))
 				line=line.replaceAll("\t([IB])-([^+]*)\\+I-\\2","\t$1-$2");
@@ -332,14 +849,202 @@ public class CoNLLAlign {
 		return line;
 	}
 	
+	/** flags of main(), to run CoNLLAlign from other code, e.g., CoNLLAlignBatch */
+	public static class Options {
+		/** default document boundaries of -docs, e.g., <code># newdoc id = ...</code> (CoNLL-U) */
+		public static final String DOCS = "^\\s*#\\s*(newdoc|doc)\\b";
+
+		public int col1 = 0;
+		public int col2 = 0;
+		public boolean force = false;
+		public boolean split = false;
+		/** with split, maximum number of characters of a delta that is split into subtokens, cf. CoNLLAlignSubTok.mergeDelta() */
+		public int maxDelta = CoNLLAlignSubTok.MAX_DELTA;
+		public boolean lev = false;
+		/** diff engine, cf. getEngine() */
+		public String engine = "myers";
+		/** memory budget of the diff in bytes, negative for the default */
+		public long budget = -1;
+		public int threads = 0;
+		public int flush = CoNLLWriter.END;
+		public Set<Integer> dropCols = new HashSet<Integer>();
+		/** document boundaries, cf. mergeDocs(), null to align files as a whole */
+		public Pattern docs = null;
+
+		/** parse the flags of main()
+		 * @param files number of leading file arguments, COL1 and COL2 follow these */
+		public static Options parse(String[] argv, int files) {
+			Options result = new Options();
+			try {
+				result.col1 = Integer.parseInt(argv[files]);
+				result.col2 = Integer.parseInt(argv[files+1]);
+			} catch (Exception e) {};
+	
+			result.force = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-f[,\\]].*");
+			result.split = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-split[,\\]].*");
+			result.lev = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-lev[enshti]*[,\\]].*");
+			boolean linear = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-linear[,\\]].*");
+			for(String arg : argv) {
+				if(arg.toLowerCase().startsWith("-mem="))
+					result.budget = Long.parseLong(arg.replaceFirst("^.*=",""))*1024*1024;
+				if(arg.toLowerCase().startsWith("-maxdelta="))
+					result.maxDelta = Integer.parseInt(arg.replaceFirst("^.*=",""));
+				if(arg.toLowerCase().startsWith("-engine="))
+					result.engine = arg.replaceFirst("^.*=","");
+				if(arg.toLowerCase().startsWith("-threads="))
+					result.threads = Integer.parseInt(arg.replaceFirst("^.*=",""));
+				if(arg.toLowerCase().startsWith("-flush="))
+					result.flush = CoNLLWriter.parsePolicy(arg.replaceFirst("^.*=",""));
+				if(arg.toLowerCase().equals("-docs"))
+					result.docs = Pattern.compile(DOCS);
+				if(arg.toLowerCase().startsWith("-docs="))
+					result.docs = Pattern.compile(arg.replaceFirst("^[^=]*=",""));
+			}
+			if(linear)
+				result.engine = "linear";
+			// boolean giza = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-giza .*");
+			File src2tgtText = null;
+			File tgt2srcText = null;
+			File src2tgtDict = null;
+			File tgt2srcDict = null;
+		
+			/*if(giza) {
+				int i = 0;
+				while(i<argv.length && !argv[i].toLowerCase().equals("-giza"))
+					i++;
+				src2tgtText = new File(argv[++i]);
+				if(i+1<argv.length) {
+					src2tgtDict = new File(argv[i+1]);
+					if(!src2tgtDict.exists()) {
+						src2tgtDict=null;
+					} else i++;
+				}
+				if(i+2<argv.length && argv[i].toLowerCase().equals("-azig")) {
+					tgt2srcText = new File(argv[++i]);
+					if(i+1<argv.length) {
+						tgt2srcDict = new File(argv[i+1]);
+						if(!tgt2srcDict.exists())
+							tgt2srcDict=null;
+					}
+				}
+			}*/
+		
+			if(result.split && result.lev) {
+				System.err.println("warning: flags -lev and -split should not be combined, dropping -split");
+				result.split=false;
+			}
+				
+			if(!Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-drop[,\\]].*"))
+				result.dropCols.add(result.col2);
+		
+			int i = 0;
+			while(i<argv.length && !argv[i].toLowerCase().equals("-drop"))
+				i++;
+			while(i<argv.length) {
+				try {
+					result.dropCols.add(Integer.parseInt(argv[i++]));
+				} catch (NumberFormatException e) {}
+			}
+			return result;
+		}
+
+		/** diff engine as specified by these options, cf. getEngine() */
+		public DiffEngine engine() throws ReflectiveOperationException {
+			return engine(budget);
+		}
+
+		/** diff engine with the given memory budget, with -split, texts that differ only in tokenization are aligned by
+		 * character offsets (cf. OffsetDiff) */
+		protected DiffEngine engine(long budget) throws ReflectiveOperationException {
+			DiffEngine result = getEngine(engine, budget, threads);
+			if(split)
+				return new OffsetDiff(result);
+			return result;
+		}
+
+		/** merge two tables that have already been read into out, out is flushed, but not closed */
+		public void merge(CoNLLTable conll1, CoNLLTable conll2, DiffEngine engine, Writer out) throws IOException {
+			create(conll1, conll2, col1, col2, engine.diff(conll1.column(col1), conll2.column(col2)), split, maxDelta, lev).merge(out, dropCols, force);
+			out.flush();
+		}
+
+		/** align two tables that have already been read, returns the alignment model */
+		public Alignment align(CoNLLTable conll1, CoNLLTable conll2, DiffEngine engine) throws IOException {
+			return create(conll1, conll2, col1, col2, engine.diff(conll1.column(col1), conll2.column(col2)), split, maxDelta, lev).align(dropCols);
+		}
+
+		/** merge files (cf. mergeAll()) into out, out is flushed, but not closed */
+		public void merge(List<File> files, Writer out) throws IOException, ReflectiveOperationException {
+			if(docs!=null && files.size()==2) {
+				mergeDocs(readCoNLL(files.get(0)), readCoNLL(files.get(1)), out);
+				return;
+			}
+			if(docs!=null)
+				System.err.println("warning: -docs is only supported for two files, aligning files as a whole");
+			long budget = this.budget;
+			if(files.size()>2 && force) {		// diffs run in parallel, cf. mergeAll()
+				if(budget<0) budget = Runtime.getRuntime().maxMemory()/4;
+				budget = budget/Math.min(files.size()-1, threads>0 ? threads : Runtime.getRuntime().availableProcessors());
+			}
+			mergeAll(files, col1, col2, dropCols, force, split, maxDelta, lev, engine(budget), threads, out);
+			out.flush();
+		}
+
+		/** merge two tables document by document into out: both are split before rows whose first cell matches docs, if they
+		 * have the same number of documents, the document pairs are aligned in parallel and written in their original order,
+		 * otherwise, the tables are aligned as a whole. out is flushed, but not closed */
+		public void mergeDocs(CoNLLTable conll1, CoNLLTable conll2, Writer out) throws IOException, ReflectiveOperationException {
+			final List<CoNLLTable> docs1 = split(conll1, docs);
+			final List<CoNLLTable> docs2 = split(conll2, docs);
+			if(docs1.size()!=docs2.size()) {
+				System.err.println("warning: found "+docs1.size()+" vs. "+docs2.size()+" documents, aligning files as a whole");
+				merge(conll1, conll2, engine(), out);
+				return;
+			}
+			if(docs1.get(0).size()==0 && docs2.get(0).size()==0) {		// nothing before the first boundary
+				docs1.remove(0);
+				docs2.remove(0);
+			}
+
+			int threads = this.threads>0 ? this.threads : Runtime.getRuntime().availableProcessors();
+			long budget = this.budget;
+			if(budget<0) budget = Runtime.getRuntime().maxMemory()/4;
+			final DiffEngine engine = engine(budget/threads);
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				// reorder buffer: documents being aligned, in their original order, at most two per thread
+				Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+				int next = 0;
+				while(next<docs1.size() || !pending.isEmpty()) {
+					while(next<docs1.size() && pending.size()<2*threads) {
+						final int doc = next++;
+						pending.add(pool.submit(new Callable<String>() {
+							public String call() throws IOException {
+								StringWriter result = new StringWriter();
+								merge(docs1.set(doc, null), docs2.set(doc, null), engine, result);
+								return result.toString();
+							}
+						}));
+					}
+					out.write(get(pending.remove()));
+				}
+				out.flush();
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+	}
+
 	public static void main(String[] argv) throws Exception {
 		if(!Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-silent[,\\]].*")) {
-			System.err.println("synopsis: CoNLLAlign FILE1.tsv FILE2.tsv [COL1 COL2] [-silent] [-f] [-split] [-lev] "+/*[-giza GIZAOPTs] */"[-drop none | -drop COLx..z]\n"+
+			System.err.println("synopsis: CoNLLAlign FILE1.tsv FILE2.tsv [.. FILEn.tsv] [COL1 COL2] [-silent] [-f] [-split] [-maxdelta=N] [-lev] [-engine=ENGINE] [-linear] [-mem=MB] [-threads=N] [-flush=POLICY] [-docs[=REGEX]] "+/*[-giza GIZAOPTs] */"[-drop none | -drop COLx..z]\n"+
 				"extract the contents of the specified column, run diff\n"+
 				"and integrate the content of FILE1 and FILE2 on that basis\n"+
+				"if more files are given, FILE3..n are merged one by one with the result\n"+
 				"(similar to sdiff, but optimized for CoNLL)");
 			if(argv.length==0) System.err.println(
 				"\tFILEi.tsv  tab-separated text files, e.g. CoNLL format\n"+
+				"\t           FILE1.tsv is the pivot, the others are read and aligned with it in parallel\n"+
 				"\tCOLi       column number to be used for the alignment,\n"+
 				"\t           defaults to 0 (first)\n"+
 				"\t-silent    suppress synopsis\n"+
@@ -347,9 +1052,26 @@ public class CoNLLAlign {
 				"\t           suppresses *RETOK* nodes, thus keeping the token sequence intact\n"+
 				"\t-split     by default, the tokenization of the first file is adopted for the output\n"+
 				"\t           with this flag, split tokens from both files into longest common subtokens\n"+
+				"\t           tokens are aligned by character offsets (ignoring whitespace), where the characters differ,\n"+
+				"\t           by ENGINE up to the next rows it aligns\n"+
+				"\t-maxdelta=N with -split, mismatches of more than N characters are cut at identical tokens, parts\n"+
+				"\t           still larger are not split (as without -split), 0 for no limit (default)\n"+
 				"\t-lev       use relative Levenshtein distance with greedy decoding to resolve n:m matches\n"+
 				"\t           mutually exclusive with -split, should only be used when aligning text that is\n"+
 				"\t           not identical, but rather, similar, e.g., different editions of the same text\n"+
+				"\t-engine=ENGINE diff engine for finding the deltas, by default myers,\n"+
+				"\t           other built-in engines are linear, patience (unique tokens as anchors,\n"+
+				"\t           chunks between anchors are diffed in parallel), sentence (align identical sentences,\n"+
+				"\t           then diff tokens of the others) and difflib (original java-diff-utils),\n"+
+				"\t           otherwise the name of a class implementing DiffEngine or difflib.DiffAlgorithm\n"+
+				"\t-linear    run the diff in linear space (slower, but no quadratic trace), same as -engine=linear\n"+
+				"\t-mem=MB    memory budget for the diff trace, by default 1/4 of the maximum heap\n"+
+				"\t           if exceeded, we switch to linear space, i.e., -linear is -mem=0\n"+
+				"\t-threads=N number of threads for -engine=patience, more than two files and -docs, by default one per processor\n"+
+				"\t-flush=POLICY when to flush the output: end (default), sentence, or after N chars\n"+
+				"\t-docs[=REGEX] for two files, split both before rows whose first cell matches REGEX, by default\n"+
+				"\t           "+Options.DOCS+" (# newdoc or # doc comments), if they have the same number of\n"+
+				"\t           documents, align document pairs in parallel (cf. -threads), otherwise, the files as a whole\n"+
 				/*"\t-giza      perform alignment using a precompiled GIZA++ Viterbi Alignment (*.A3.final)\n"+
 				"\t GIZAOPTS: A3 [ti [-azig A3 [ti]]] ...\n"+
 				"\t   -giza   A3 and ti arguments for aligning FILE1.tsv with FILE2.tsv\n"+
@@ -361,74 +1083,15 @@ public class CoNLLAlign {
 				"\t           or -drop none");
 		}
 		
-		int col1 = 0;
-		int col2 = 0;
-		try {
-			col1 = Integer.parseInt(argv[2]);
-			col2 = Integer.parseInt(argv[3]);
-		} catch (Exception e) {};
-	
-		boolean force = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-f[,\\]].*");
-		boolean split = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-split[,\\]].*");
-		boolean lev = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-lev[enshti]*[,\\]].*");
-		// boolean giza = Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-giza .*");
-		File src2tgtText = null;
-		File tgt2srcText = null;
-		File src2tgtDict = null;
-		File tgt2srcDict = null;
-		
-		/*if(giza) {
-			int i = 0;
-			while(i<argv.length && !argv[i].toLowerCase().equals("-giza"))
-				i++;
-			src2tgtText = new File(argv[++i]);
-			if(i+1<argv.length) {
-				src2tgtDict = new File(argv[i+1]);
-				if(!src2tgtDict.exists()) {
-					src2tgtDict=null;
-				} else i++;
-			}
-			if(i+2<argv.length && argv[i].toLowerCase().equals("-azig")) {
-				tgt2srcText = new File(argv[++i]);
-				if(i+1<argv.length) {
-					tgt2srcDict = new File(argv[i+1]);
-					if(!tgt2srcDict.exists())
-						tgt2srcDict=null;
-				}
-			}
-		}*/
-		
-		if(split && lev) {
-			System.err.println("warning: flags -lev and -split should not be combined, dropping -split");
-			split=false;
-		}
-				
-		HashSet<Integer> dropCols = new HashSet<Integer>();
-		if(!Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-drop[,\\]].*"))
-			dropCols.add(col2);
-		
-		int i = 0;
-		while(i<argv.length && !argv[i].toLowerCase().equals("-drop"))
-			i++;
-		while(i<argv.length) {
-			try {
-				dropCols.add(Integer.parseInt(argv[i++]));
-			} catch (NumberFormatException e) {}
-		}
-		
-		CoNLLAlign me;
-		
-		if(split) {
-			me = new CoNLLAlignSubTok(new File(argv[0]), new File(argv[1]),col1,col2);
-		} else if(lev){
-			me = new CoNLLAlignSimilarText(new File(argv[0]), new File(argv[1]),col1,col2);
-		} else /* if(giza) {
-			me = new CoNLLAlignGIZA(new File(argv[0]), new File(argv[1]),col1,col2,
-					src2tgtText, tgt2srcText, src2tgtDict, tgt2srcDict);
-		} else */ {
-			me = new CoNLLAlign(new File(argv[0]), new File(argv[1]),col1,col2);
-		}
-		
-		me.merge(new OutputStreamWriter(System.out), dropCols, force);
+		int files = 2;
+		while(files<argv.length && new File(argv[files]).isFile())
+			files++;
+
+		Options options = Options.parse(argv, files);
+		List<File> inputs = new ArrayList<File>();
+		for(int f = 0; f<files; f++)
+			inputs.add(new File(argv[f]));
+
+		options.merge(inputs, new CoNLLWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), options.flush));
 	}
 }
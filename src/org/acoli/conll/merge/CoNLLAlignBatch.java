@@ -0,0 +1,180 @@
+package org.acoli.conll.merge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/** batch mode of CoNLLAlign: run many alignments in one JVM, instead of one JVM per document pair<br/>
+ * the manifest has one job per line, with tab-separated FILE1, FILE2, COL1, COL2, FLAGS and OUTPUT, where FLAGS are
+ * space-separated flags of CoNLLAlign.main() (empty COLi default to 0). Empty lines and comments (#) are skipped.<br/>
+ * Jobs run on a bounded pool. A failing job does not stop the others, its (partial) output is removed, but an Error (e.g.,
+ * OutOfMemoryError, the jobs share the memory budget of the diff) fails the run.
+ * For every job, the report row gives its manifest line, status (ok or failed), time in ms and output file or error. */
+public class CoNLLAlignBatch {
+
+	/** maximum number of jobs running at the same time */
+	protected final int threads;
+
+	/** run jobs on virtual threads (if supported by the JVM), otherwise, on a fixed pool of platform threads */
+	protected final boolean virtual;
+
+	public CoNLLAlignBatch(int threads, boolean virtual) {
+		this.threads=threads;
+		this.virtual=virtual;
+	}
+
+	/** one alignment, as by CoNLLAlign.main() */
+	protected static class Job implements Callable<String> {
+		protected final int line;
+		protected final String[] fields;
+		protected final Semaphore slots;
+
+		/** memory budget of the diff in bytes, unless FLAGS set -mem */
+		protected final long budget;
+
+		/** @param fields FILE1, FILE2, COL1, COL2, FLAGS, OUTPUT */
+		protected Job(int line, String[] fields, Semaphore slots, long budget) {
+			this.line=line;
+			this.fields=fields;
+			this.slots=slots;
+			this.budget=budget;
+		}
+
+		/** arguments for CoNLLAlign.Options.parse() */
+		protected String[] argv() {
+			if(fields.length!=6)
+				throw new IllegalArgumentException("expected 6 tab-separated fields, found "+fields.length);
+			List<String> argv = new ArrayList<String>();
+			argv.add(fields[0]);
+			argv.add(fields[1]);
+			argv.add(fields[2].trim().equals("") ? "0" : fields[2].trim());
+			argv.add(fields[3].trim().equals("") ? "0" : fields[3].trim());
+			if(!fields[4].trim().equals(""))
+				argv.addAll(Arrays.asList(fields[4].trim().split(" +")));
+			return argv.toArray(new String[argv.size()]);
+		}
+
+		/** returns the report row */
+		public String call() throws InterruptedException {
+			if(slots!=null) slots.acquire();
+			long start = System.nanoTime();
+			File output = null;
+			try {
+				String[] argv = argv();
+				output = new File(fields[5]);
+				CoNLLAlign.Options options = CoNLLAlign.Options.parse(argv, 2);
+				if(options.budget<0)
+					options.budget=budget;
+				CoNLLWriter out = new CoNLLWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), options.flush);
+				try {
+					options.merge(Arrays.asList(new File(argv[0]), new File(argv[1])), out);
+				} finally {
+					out.close();
+				}
+				return report("ok", start, output.toString());
+			} catch (Exception e) {
+				if(output!=null) output.delete();
+				return report("failed", start, e.toString());
+			} finally {
+				if(slots!=null) slots.release();
+			}
+		}
+
+		protected String report(String status, long start, String message) {
+			return line+"\t"+status+"\t"+(System.nanoTime()-start)/1000000+"\t"+message.replaceAll("[\t\r\n]+", " ");
+		}
+	}
+
+	/** run all jobs of the manifest, write one report row per job to report (in manifest order),
+	 * returns the number of failed jobs */
+	public int run(BufferedReader manifest, PrintStream report) throws IOException, InterruptedException {
+		ExecutorService pool = null;
+		Semaphore slots = null;
+		if(virtual)
+			try {
+				pool = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				slots = new Semaphore(threads);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("warning: virtual threads not supported by this JVM, using "+threads+" platform threads");
+			}
+		if(pool==null)
+			pool = Executors.newFixedThreadPool(threads);
+
+		// jobs running at the same time share the default budget of a single diff
+		long budget = Runtime.getRuntime().maxMemory()/4/threads;
+
+		int failed = 0;
+		try {
+			List<Future<String>> jobs = new ArrayList<Future<String>>();
+			int l = 0;
+			for(String line = manifest.readLine(); line!=null; line=manifest.readLine()) {
+				l++;
+				if(line.trim().equals("") || line.trim().startsWith("#")) continue;
+				jobs.add(pool.submit(new Job(l, line.split("\t", -1), slots, budget)));
+			}
+			for(Future<String> job : jobs) {
+				String row;
+				try {
+					row = job.get();
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof Error) {		// e.g., OutOfMemoryError, fails the run rather than the job
+						pool.shutdownNow();
+						throw (Error)e.getCause();
+					}
+					row = "?\tfailed\t?\t"+e.getCause();
+				}
+				if(!row.split("\t")[1].equals("ok")) failed++;
+				report.println(row);
+			}
+			report.flush();
+		} finally {
+			pool.shutdown();
+		}
+		return failed;
+	}
+
+	public static void main(String[] argv) throws Exception {
+		System.err.println("synopsis: CoNLLAlignBatch MANIFEST.tsv [-threads=N] [-virtual]\n"+
+			"run CoNLLAlign for every line of the manifest, in one JVM\n"+
+			"\tMANIFEST.tsv one job per line: FILE1 TAB FILE2 TAB COL1 TAB COL2 TAB FLAGS TAB OUTPUT\n"+
+			"\t             FLAGS are space-separated flags of CoNLLAlign, e.g., -f -drop none\n"+
+			"\t             if MANIFEST.tsv is --, read from stdin\n"+
+			"\t-threads=N   number of jobs to run in parallel, by default one per processor, these share the default\n"+
+			"\t             memory budget of the diff (cf. -mem of CoNLLAlign), unless a job sets -mem\n"+
+			"\t-virtual     run jobs on virtual threads (if supported by the JVM), still at most N at a time\n"+
+			"writes a report to stdout: LINE TAB STATUS TAB MS TAB OUTPUT or error message");
+		if(argv.length==0) return;
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean virtual = false;
+		for(String arg : argv) {
+			if(arg.toLowerCase().startsWith("-threads="))
+				threads = Integer.parseInt(arg.replaceFirst("^.*=",""));
+			if(arg.toLowerCase().equals("-virtual"))
+				virtual = true;
+		}
+
+		BufferedReader manifest = new BufferedReader(new InputStreamReader(
+				argv[0].equals("--") ? System.in : new FileInputStream(argv[0]), StandardCharsets.UTF_8));
+		long start = System.currentTimeMillis();
+		int failed = new CoNLLAlignBatch(threads, virtual).run(manifest, System.out);
+		manifest.close();
+		System.err.println("done in "+(System.currentTimeMillis()-start)+" ms, "+failed+" failed");
+		if(failed>0) System.exit(1);
+	}
+}
@@ -2,10 +2,9 @@ package org.acoli.conll.merge;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
 
@@ -24,8 +23,104 @@ public class CoNLLAlignSimilarText extends CoNLLAlign {
 		super(file1, file2, col1, col2);
 	}
 
+	public CoNLLAlignSimilarText(File file1, File file2, int col1, int col2, DiffEngine engine) throws IOException {
+		super(file1, file2, col1, col2, engine);
+	}
+
+	public CoNLLAlignSimilarText(CoNLLTable conll1, CoNLLTable conll2, int col1, int col2, List<Delta> deltas) {
+		super(conll1, conll2, col1, col2, deltas);
+	}
+
+	/** pattern bit masks of levenshteinDistance(), reused for every call */
+	protected final PatternMasks masks = new PatternMasks();
+
+	/** bit masks of the characters of a pattern with at most 64 characters (bit i is set if the character is at position i),
+	 * directly for Latin-1, otherwise in an open-addressing table, cleared after every use */
+	protected static class PatternMasks {
+		protected final long[] latin = new long[256];
+		protected final char[] chars = new char[128];
+		protected final long[] masks = new long[128];
+
+		/** table slots in use */
+		protected final int[] used = new int[64];
+		protected int size = 0;
+
+		public void set(CharSequence pattern) {
+			for(int i = 0; i<pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if(c<256) {
+					latin[c]|=1L<<i;
+					continue;
+				}
+				int slot = slot(c);
+				if(masks[slot]==0) {
+					chars[slot]=c;
+					used[size++]=slot;
+				}
+				masks[slot]|=1L<<i;
+			}
+		}
+
+		public long get(char c) {
+			if(c<256) return latin[c];
+			if(size==0) return 0;
+			return masks[slot(c)];
+		}
+
+		public void clear(CharSequence pattern) {
+			for(int i = 0; i<pattern.length(); i++)
+				if(pattern.charAt(i)<256) latin[pattern.charAt(i)]=0;
+			while(size>0)
+				masks[used[--size]]=0;
+		}
+
+		/** slot of c, or the empty slot where it would go */
+		private int slot(char c) {
+			int slot = (c*0x9E37) & 127;
+			while(masks[slot]!=0 && chars[slot]!=c)
+				slot = (slot+1) & 127;
+			return slot;
+		}
+	}
+
+	/** calculate Levenshtein distance, bit-parallel if the shorter string has at most 64 characters (Myers 1999, in the formulation
+	 * of Hyyro 2001), otherwise, cf. levenshteinDP()<br/>
+	 * uses the masks of this aligner, i.e., not for concurrent use */
+	public int levenshteinDistance(CharSequence lhs, CharSequence rhs) {
+		CharSequence pattern = lhs;
+		CharSequence text = rhs;
+		if(pattern.length()>text.length()) {
+			pattern = rhs;
+			text = lhs;
+		}
+		int m = pattern.length();
+		if(m==0) return text.length();
+		if(m>64) return levenshteinDP(lhs, rhs);
+
+		masks.set(pattern);
+		long pv = -1L;		// vertical deltas (+1, -1) of the current column
+		long mv = 0L;
+		long last = 1L<<(m-1);
+		int score = m;
+		for(int j = 0; j<text.length(); j++) {
+			long eq = masks.get(text.charAt(j));
+			long xv = eq | mv;
+			long xh = (((eq & pv) + pv) ^ pv) | eq;
+			long ph = mv | ~(xh | pv);		// horizontal deltas
+			long mh = pv & xh;
+			if((ph & last)!=0) score++;
+			else if((mh & last)!=0) score--;
+			ph = (ph<<1) | 1L;
+			mh = mh<<1;
+			pv = mh | ~(xv | ph);
+			mv = ph & xv;
+		}
+		masks.clear(pattern);
+		return score;
+	}
+
 	/** calculate Levenshtein distance, cf. https://en.wikibooks.org/wiki/Algorithm_Implementation/Strings/Levenshtein_distance#Java, CC-BY-SA */
-	public int levenshteinDistance (CharSequence lhs, CharSequence rhs) {                          
+	protected static int levenshteinDP(CharSequence lhs, CharSequence rhs) {                          
 		int len0 = lhs.length() + 1;                                                     
 		int len1 = rhs.length() + 1;                                                     
 																						
@@ -78,12 +173,12 @@ public class CoNLLAlignSimilarText extends CoNLLAlign {
 
 		Writer myOut = out;
 		if(force)
-			myOut = new StringWriter();
+			myOut = new PruneWriter(out);
 
 		boolean debug=false;
 
-		Vector<String[]> left = new Vector<String[]>();
-		Vector<String[]> right = new Vector<String[]>();
+		Rows left = new Rows();
+		Rows right = new Rows();
 		while(i<conll1.size() && j<conll2.size()) {
 
 			// build left and right
@@ -98,34 +193,34 @@ public class CoNLLAlignSimilarText extends CoNLLAlign {
 			}
 			
 			if(delta!=null && delta.getOriginal().getPosition()==i && delta.getOriginal().size()==1 && 
-				conll1.get(i).length==1 && conll1.get(i)[0].trim().equals("") && delta.getType().equals(Delta.TYPE.CHANGE)) {
-				left.add(conll1.get(i++));
+				conll1.length(i)==1 && conll1.get(i, 0).trim().equals("") && delta.getType().equals(Delta.TYPE.CHANGE)) {
+				left.add(conll1.get(i), i++);
 				right.add(null);
 				for(int r = 0; r<delta.getRevised().size(); r++) {
 					left.add(null);
-					right.add(conll2.get(j++));
+					right.add(conll2.get(j), j++);
 				}
 				d++;
 			} else if(delta!=null && delta.getOriginal().getPosition()==i && delta.getOriginal().size()==1 && 
-				conll1.get(i).length>0 && conll1.get(i)[0].trim().startsWith("#") && delta.getType().equals(Delta.TYPE.CHANGE)) {
-				left.add(conll1.get(i++));
+				conll1.length(i)>0 && conll1.get(i, 0).trim().startsWith("#") && delta.getType().equals(Delta.TYPE.CHANGE)) {
+				left.add(conll1.get(i), i++);
 				right.add(null);
 				for(int r = 0; r<delta.getRevised().size(); r++) {
 					left.add(null);
-					right.add(conll2.get(j++));
+					right.add(conll2.get(j), j++);
 				}
 				d++;
 			} else if(delta==null || delta.getOriginal().getPosition()>i) {					// no change
-				left.add(conll1.get(i++));
-				right.add(conll2.get(j++));
+				left.add(conll1.get(i), i++);
+				right.add(conll2.get(j), j++);
 			} else if (delta.getOriginal().size()*delta.getRevised().size()==1) { 		// 1:1 replacements
-				left.add(conll1.get(i++));
-				if(conll2.get(j)!=null && conll2.get(j).length==1 && conll2.get(j)[0].trim().startsWith("#")) {			// keep right-side comments
+				left.add(conll1.get(i), i++);
+				if(conll2.length(j)==1 && conll2.get(j, 0).trim().startsWith("#")) {			// keep right-side comments
 					right.add(null);
-					left.add(conll2.get(j));
+					left.addOther(conll2.get(j), j);
 					right.add(null);
-				} else if(conll2.get(j)!=null && conll2.get(j).length > col2 && !conll2.get(j)[col2].equals(""))		// drop empty lines on the right
-					right.add(conll2.get(j));
+				} else if(conll2.length(j) > col2 && !conll2.get(j, col2).equals(""))		// drop empty lines on the right
+					right.add(conll2.get(j), j);
 				else right.add(null);
 				j++;
 				d++;
@@ -180,30 +275,30 @@ public class CoNLLAlignSimilarText extends CoNLLAlign {
 				while(o<o2r.length && r<r2o.length) {
 					while(o2r[o]>r) { // && conll2.size()>j) {
 						left.add(null);
-						right.add(conll2.get(j++));
+						right.add(conll2.get(j), j++);
 						r++;
 					}
 					while(r2o.length>r && r2o[r]>o) { // && conll1.size()>i) {
 						right.add(null);
-						left.add(conll1.get(i++));
+						left.add(conll1.get(i), i++);
 						o++;
 					}
 					//if(conll1.size()>i && conll2.size()>j) 
 					{
-						left.add(conll1.get(i++));
-						right.add(conll2.get(j++));
+						left.add(conll1.get(i), i++);
+						right.add(conll2.get(j), j++);
 					}
 					r++;
 					o++;
 				}
 				while(r<delta.getRevised().size()) {
 					left.add(null);
-					right.add(conll2.get(j++));
+					right.add(conll2.get(j), j++);
 					r++;
 				}
 				while(o<relMatrix.length) {
 					right.add(null);
-					left.add(conll1.get(i++));
+					left.add(conll1.get(i), i++);
 					o++;
 				}					
 			}
@@ -219,7 +314,9 @@ public class CoNLLAlignSimilarText extends CoNLLAlign {
 			}
 		}
 		if(force)
-			prune(out,new StringReader(myOut.toString()));
+			((PruneWriter)myOut).finish();
+		else
+			out.flush();
 	}
 
 	/** greedy non-crossing alignment decoding for a distance matrix: 
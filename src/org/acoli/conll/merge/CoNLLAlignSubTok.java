@@ -2,16 +2,16 @@ package org.acoli.conll.merge;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
 
 import difflib.Delta;
-import difflib.DiffUtils;
 
 
 /** Runs Myers Diff on the FORM column of two CoNLL files to establish an alignment
@@ -39,10 +39,24 @@ import difflib.DiffUtils;
 */ 
 public class CoNLLAlignSubTok extends CoNLLAlign {
 	
+	/** default of maxDelta, in characters, 0 (no limit) to keep -split output unchanged unless -maxdelta is given */
+	public static final int MAX_DELTA = 0;
+
+	/** maximum number of characters (FILE1 and FILE2 forms) of a delta that is split into subtokens, cf. mergeDelta(), non-positive for no limit */
+	protected int maxDelta = MAX_DELTA;
+
 	public CoNLLAlignSubTok(File file, File file2, int col1, int col2) throws IOException {
 		super(file,file2,col1,col2);
 	}
 
+	public CoNLLAlignSubTok(File file, File file2, int col1, int col2, DiffEngine engine) throws IOException {
+		super(file,file2,col1,col2,engine);
+	}
+
+	public CoNLLAlignSubTok(CoNLLTable conll1, CoNLLTable conll2, int col1, int col2, List<Delta> deltas) {
+		super(conll1,conll2,col1,col2,deltas);
+	}
+
 	/** given two CoNLL files, perform subtoken-level merge:
 	 * merge CoNLL files by splitting tokens into maximal common subtokens:
 	 * instead of enforcing one tokenization over another, split both tokenizations to minimal common strings and add this as a new first column
@@ -55,13 +69,13 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 
 		Writer myOut = out;
 		if(force)
-			myOut = new StringWriter();
+			myOut = new PruneWriter(out);
 		
 		// boolean split=true;
 		boolean debug=false;
 
-		Vector<String[]> left = new Vector<String[]>();
-		Vector<String[]> right = new Vector<String[]>();
+		Rows left = new Rows();
+		Rows right = new Rows();
 		while(i<conll1.size() && j<conll2.size()) {
 
 			// build left and right
@@ -76,38 +90,38 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 			}
 			
 			if(delta!=null && delta.getOriginal().getPosition()==i && delta.getOriginal().size()==1 && 
-				conll1.get(i).length==1 && conll1.get(i)[0].trim().equals("") && delta.getType().equals(Delta.TYPE.CHANGE)) {
+				conll1.length(i)==1 && conll1.get(i, 0).trim().equals("") && delta.getType().equals(Delta.TYPE.CHANGE)) {
 				// left.add(new String[] { "# override empty line replacement"});
 				// right.add(null);
-				left.add(conll1.get(i++));
+				left.add(conll1.get(i), i++);
 				right.add(null);
 				for(int r = 0; r<delta.getRevised().size(); r++) {
 					left.add(null);
-					right.add(conll2.get(j++));
+					right.add(conll2.get(j), j++);
 				}
 				d++;
 			} else if(delta!=null && delta.getOriginal().getPosition()==i && delta.getOriginal().size()==1 && 
-				conll1.get(i).length>0 && conll1.get(i)[0].trim().startsWith("#") && delta.getType().equals(Delta.TYPE.CHANGE)) {
+				conll1.length(i)>0 && conll1.get(i, 0).trim().startsWith("#") && delta.getType().equals(Delta.TYPE.CHANGE)) {
 				// left.add(new String[] { "# override comment replacement"});
 				// right.add(null);
-				left.add(conll1.get(i++));
+				left.add(conll1.get(i), i++);
 				right.add(null);
 				for(int r = 0; r<delta.getRevised().size(); r++) {
 					left.add(null);
-					right.add(conll2.get(j++));
+					right.add(conll2.get(j), j++);
 				}
 				d++;
 			} else if(delta==null || delta.getOriginal().getPosition()>i) {					// no change
-				left.add(conll1.get(i++));
-				right.add(conll2.get(j++));
+				left.add(conll1.get(i), i++);
+				right.add(conll2.get(j), j++);
 			} else if (delta.getOriginal().size()*delta.getRevised().size()==1) { 		// 1:1 replacements
-				left.add(conll1.get(i++));
-				if(conll2.get(j)!=null && conll2.get(j).length==1 && conll2.get(j)[0].trim().startsWith("#")) {			// keep right-side comments
+				left.add(conll1.get(i), i++);
+				if(conll2.length(j)==1 && conll2.get(j, 0).trim().startsWith("#")) {			// keep right-side comments
 					right.add(null);
-					left.add(conll2.get(j));
+					left.addOther(conll2.get(j), j);
 					right.add(null);
-				} else if(conll2.get(j)!=null && conll2.get(j).length > col2 && !conll2.get(j)[col2].equals(""))		// drop empty lines on the right
-					right.add(conll2.get(j));
+				} else if(conll2.length(j) > col2 && !conll2.get(j, col2).equals(""))		// drop empty lines on the right
+					right.add(conll2.get(j), j);
 				else right.add(null);
 				j++;
 				d++;
@@ -116,44 +130,14 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 				
 				/** BEGIN subtoken modification **/
 
-																				// sub-token merge				
-					List<String> chars1 = new Vector<String>();								
-					List<String> chars2 = new Vector<String>();
-					List<Integer> chars2conll1 = new Vector<Integer>();
-					List<Integer> chars2conll2 = new Vector<Integer>();
-																							// prepare character-level diff between chars1 and chars2
 					if(debug) {
 						left.add(new String[] { "# "+delta});			// DEBUG
 						right.add(null);
 					}
 					
-					for(int o=0; o<delta.getOriginal().size(); o++) {
-						if(forms1.get(i).trim().startsWith("#")) {							// exclude comments
-							left.add(conll1.get(i));
-							right.add(null);						
-						} else
-							for(String c : forms1.get(i).replaceAll("(.)","$1\t").trim().split("\t")) {
-								chars1.add(c);
-								chars2conll1.add(i);
-							}
-						i++;
-					}
-					
-					for(int r = 0; r<delta.getRevised().size(); r++) {
-						if(forms2.get(j).trim().startsWith("#")) {
-							left.add(conll2.get(j));
-							right.add(null);
-						} else
-							for(String c : forms2.get(j).replaceAll("(.)","$1\t").trim().split("\t")) {
-								chars2.add(c);
-								chars2conll2.add(j);
-							}
-						j++;
-					}
-
-					Vector<Vector<String[]>> updateLR = split(chars1,chars2,chars2conll1, chars2conll2);
-					left.addAll(updateLR.get(0));
-					right.addAll(updateLR.get(1));
+					mergeDelta(i, i+delta.getOriginal().size(), j, j+delta.getRevised().size(), left, right);
+					i+=delta.getOriginal().size();
+					j+=delta.getRevised().size();
 					
 					/** END subtoken modification **/
 			}
@@ -163,11 +147,11 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 				
 				/** BEGIN subtoken modification **/
 				
-					left=undoIOBES4syntax(left);
-					right=undoIOBES4syntax(right);
+					undoIOBES4syntax(left);
+					undoIOBES4syntax(right);
 					
-					left=repairIOBES(left);
-					right=repairIOBES(right);
+					repairIOBES(left);
+					repairIOBES(right);
 
 				/** END subtoken modification **/
 
@@ -178,24 +162,180 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 		}
 		
 		if(force)
-			prune(out,new StringReader(myOut.toString()));
+			((PruneWriter)myOut).finish();
+		else
+			out.flush();
+	}
+
+
+	/** n:m delta of FILE1 rows i..i1 and FILE2 rows j..j1 (exclusive) into left and right: if their forms have more than maxDelta
+	 * characters, unique identical tokens (incl. sentence ends) of both are aligned first (cf. PatienceDiff.anchors()), and only the
+	 * rows between these are split into subtokens. Rows between anchors that still exceed maxDelta are written one after another,
+	 * with *RETOK*-..., as by CoNLLAlign.merge(), with a warning */
+	protected void mergeDelta(int i, int i1, int j, int j1, Rows left, Rows right) {
+		if(maxDelta<=0 || length(forms1, i, i1)+length(forms2, j, j1)<=maxDelta) {
+			mergeSubtokens(i, i1, j, j1, left, right);
+			return;
+		}
+		int[] anchors = anchors(i, i1, j, j1);
+		for(int a = 0; a<=anchors.length; a+=2) {
+			int x = (a<anchors.length ? i+anchors[a] : i1);
+			int y = (a<anchors.length ? j+anchors[a+1] : j1);
+			if(length(forms1, i, x)+length(forms2, j, y)<=maxDelta) {
+				if(x>i || y>j)
+					mergeSubtokens(i, x, j, y, left, right);
+			} else {
+				System.err.println("warning: -split: FILE1 "+lines(i, x)+" and FILE2 "+lines(j, y)+" differ in more than "+maxDelta+
+						" characters, aligned without subtokens");
+				for(; i<x; i++) {
+					left.add(conll1.get(i), i);
+					right.add(null);
+				}
+				for(; j<y; j++) {
+					left.add(null);
+					right.add(conll2.get(j), j);
+				}
+			}
+			if(a<anchors.length) {
+				left.add(conll1.get(x), x);
+				right.add(conll2.get(y), y);
+			}
+			i=x+1;
+			j=y+1;
+		}
+	}
+
+	/** rows from..to (exclusive) as line numbers, for messages */
+	private static String lines(int from, int to) {
+		if(from==to) return "no lines";
+		if(from+1==to) return "line "+to;
+		return "lines "+(from+1)+"-"+to;
+	}
+
+	/** number of characters of forms from..to (exclusive) */
+	protected static long length(List<String> forms, int from, int to) {
+		long result = 0;
+		for(int i = from; i<to; i++)
+			result+=forms.get(i).length();
+		return result;
+	}
+
+	/** unique identical (trimmed) forms of FILE1 rows i..i1 and FILE2 rows j..j1, relative to i and j, cf. PatienceDiff.anchors() */
+	protected int[] anchors(int i, int i1, int j, int j1) {
+		HashMap<String,Integer> ids = new HashMap<String,Integer>();
+		int[] a = new int[i1-i];
+		int[] b = new int[j1-j];
+		for(int x = 0; x<a.length; x++)
+			a[x]=id(forms1.get(i+x).trim(), ids);
+		for(int y = 0; y<b.length; y++)
+			b[y]=id(forms2.get(j+y).trim(), ids);
+		return PatienceDiff.anchors(a, b);
 	}
 
+	private static int id(String form, HashMap<String,Integer> ids) {
+		Integer result = ids.get(form);
+		if(result==null) {
+			result = ids.size();
+			ids.put(form, result);
+		}
+		return result;
+	}
+
+	/** subtoken merge of FILE1 rows i..i1 and FILE2 rows j..j1 (exclusive) into left and right, comments are kept */
+	protected void mergeSubtokens(int i, int i1, int j, int j1, Rows left, Rows right) {
+																						// prepare character-level diff between chars1 and chars2
+		CodePoints chars1 = new CodePoints();
+		CodePoints chars2 = new CodePoints();
+		for(; i<i1; i++) {
+			if(forms1.get(i).trim().startsWith("#")) {							// exclude comments
+				left.add(conll1.get(i), i);
+				right.add(null);						
+			} else
+				chars1.add(forms1.get(i), i);
+		}
+		
+		for(; j<j1; j++) {
+			if(forms2.get(j).trim().startsWith("#")) {
+				left.addOther(conll2.get(j), j);
+				right.add(null);
+			} else
+				chars2.add(forms2.get(j), j);
+		}
+
+		List<Rows> updateLR = split(chars1.chars(), chars2.chars(), chars1.rows(), chars2.rows());
+		left.addAll(updateLR.get(0));
+		right.addAll(updateLR.get(1));
+	}
 				
+	/** diff for code points */
+	protected static final MyersDiff CHARS = new MyersDiff();
+
+	/** code point of empty forms */
+	protected static final int EMPTY = -1;
+
+	/** code points of the forms of a delta, with the row of every code point, i.e., <code>form.trim()</code> split into characters, as
+	 * Unicode code points (surrogate pairs are kept together), an empty form yields a single EMPTY code point */
+	protected static class CodePoints {
+		protected int[] chars = new int[64];
+		protected int[] rows = new int[64];
+		protected int size = 0;
+
+		public void add(String form, int row) {
+			int start = 0;
+			int end = form.length();
+			while(start<end && form.charAt(start)<=' ') start++;
+			while(end>start && form.charAt(end-1)<=' ') end--;
+			if(start==end)
+				add(EMPTY, row);
+			while(start<end) {
+				int c = form.codePointAt(start);
+				add(c, row);
+				start+=Character.charCount(c);
+			}
+		}
+
+		protected void add(int c, int row) {
+			if(size==chars.length) {
+				chars = Arrays.copyOf(chars, 2*size);
+				rows = Arrays.copyOf(rows, 2*size);
+			}
+			chars[size]=c;
+			rows[size++]=row;
+		}
+
+		public int[] chars() {
+			return Arrays.copyOf(chars, size);
+		}
+
+		public int[] rows() {
+			return Arrays.copyOf(rows, size);
+		}
+	}
+
+	/** code point as a String, "" for EMPTY */
+	protected static String str(int c) {
+		if(c==EMPTY) return "";
+		return new String(Character.toChars(c));
+	}
+
 	/** to be called with a character-wise alignment, return update vectors for left and right in split */
-	protected Vector<Vector<String[]>> split(List<String> chars1, List<String> chars2, List<Integer> chars2conll1, List<Integer> chars2conll2) {
-				Vector<String[]> left = new Vector<String[]>();						// (1) initialized with character sequences => Diff
-				Vector<String[]> right = new Vector<String[]>();
+	protected List<Rows> split(int[] chars1, int[] chars2, int[] chars2conll1, int[] chars2conll2) {
+				Rows left = new Rows();						// (1) initialized with character sequences => Diff
+				Rows right = new Rows();
 			
 				boolean debug=false;
 		
-				List<Delta> cDeltas = DiffUtils.diff(chars1, chars2).getDeltas();	// (2) aggregate into maximal common subtokens
+				List<Delta> cDeltas;								// (2) aggregate into maximal common subtokens
+				if(Arrays.equals(chars1, chars2))					// e.g., found by OffsetDiff
+					cDeltas = Collections.emptyList();
+				else
+					cDeltas = CHARS.diff(chars1, chars2);
 
 				if(debug) {
-					left.add(new String[] { "# "+chars1 });					// DEBUG
-					right.add(new String[] {chars2.toString()});
-					left.add(new String[] { "# "+chars2conll1 });
-					right.add(new String[] {chars2conll2.toString()});				
+					left.add(new String[] { "# "+Arrays.toString(chars1) });					// DEBUG
+					right.add(new String[] {Arrays.toString(chars2)});
+					left.add(new String[] { "# "+Arrays.toString(chars2conll1) });
+					right.add(new String[] {Arrays.toString(chars2conll2)});				
 					left.add(new String[]{ "# cDeltas: "+cDeltas.toString() });
 					right.add(null);
 				}
@@ -205,58 +345,58 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 				int cj=0;
 				int cd=0;
 				
-				while(ci<chars1.size() || cj<chars2.size()) {							// use I(O)BE(S) encoding to represent split annotations 
+				while(ci<chars1.length || cj<chars2.length) {							// use I(O)BE(S) encoding to represent split annotations 
 					
 					// build left and right
 					Delta cDelta = null;
 					if(cd<cDeltas.size()) cDelta = cDeltas.get(cd);
 					
 					if(cDelta==null || cDelta.getOriginal().getPosition()>ci) {					// no change => append to last subtoken or create a new one
-						if(ci>0 && cj>0 && chars2conll1.get(ci-1).equals(chars2conll1.get(ci)) && chars2conll2.get(cj-1).equals(chars2conll2.get(cj)) && left.get(left.size()-1)!=null && right.get(right.size()-1)!=null) {
-							left.get(left.size()-1)[col1]=left.get(left.size()-1)[col1]+chars1.get(ci++);
-							if(right.get(right.size()-1).length>col2) right.get(right.size()-1)[col2]=right.get(right.size()-1)[col2]+chars2.get(cj++);
+						if(ci>0 && cj>0 && chars2conll1[ci-1]==chars2conll1[ci] && chars2conll2[cj-1]==chars2conll2[cj] && left.get(left.size()-1)!=null && right.get(right.size()-1)!=null) {
+							left.get(left.size()-1)[col1]=left.get(left.size()-1)[col1]+str(chars1[ci++]);
+							if(right.get(right.size()-1).length>col2) right.get(right.size()-1)[col2]=right.get(right.size()-1)[col2]+str(chars2[cj++]);
 							
 							// IOBE(S)
-							if(ci>=chars2conll1.size()-1 && cj>=chars2conll2.size()-1) {
+							if(ci>=chars2conll1.length-1 && cj>=chars2conll2.length-1) {
 								for(int f = 0; f<left.get(left.size()-1).length; f++)
 									if(f!=col1)
-										left.get(left.size()-1)[f]=left.get(left.size()-1)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										left.get(left.size()-1)[f]=close(left.get(left.size()-1)[f]);
 								for(int f = 0; f<right.get(right.size()-1).length; f++)
 									if(f!=col2)
-										right.get(right.size()-1)[f]=right.get(right.size()-1)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										right.get(right.size()-1)[f]=close(right.get(right.size()-1)[f]);
 							}
 						} else { // new subtoken
-							left.add(Arrays.copyOf(conll1.get(chars2conll1.get(ci)),conll1.get(chars2conll1.get(ci)).length));
-							if(left.get(left.size()-1).length>col1) left.get(left.size()-1)[col1]=chars1.get(ci);
-							right.add(Arrays.copyOf(conll2.get(chars2conll2.get(cj)),conll2.get(chars2conll2.get(cj)).length));
-							if(right.get(right.size()-1).length>0) right.get(right.size()-1)[col2]=chars2.get(cj);
+							left.add(conll1.get(chars2conll1[ci]), chars2conll1[ci]);
+							if(left.get(left.size()-1).length>col1) left.get(left.size()-1)[col1]=str(chars1[ci]);
+							right.add(conll2.get(chars2conll2[cj]), chars2conll2[cj]);
+							if(right.get(right.size()-1).length>0) right.get(right.size()-1)[col2]=str(chars2[cj]);
 							
 							// IOBE(S) left
 							String iobes="I-";
-							if(ci==0 || !chars2conll1.get(ci).equals(chars2conll1.get(ci-1)))
+							if(ci==0 || chars2conll1[ci]!=chars2conll1[ci-1])
 								iobes="B-";
-							if(ci==chars2conll1.size()-1) iobes=iobes.replaceFirst("^I-","E-").replaceFirst("^B-","S-");
+							if(ci==chars2conll1.length-1) iobes=close(iobes);
 							for(int f = 0; f<left.get(left.size()-1).length; f++)
 								if(f!=col1)
 									left.get(left.size()-1)[f]=(iobes+left.get(left.size()-1)[f]);							
-							if(ci>0 && !chars2conll1.get(ci).equals(chars2conll1.get(ci-1)) && left.size()>2 && left.get(left.size()-2)!=null) {
+							if(ci>0 && chars2conll1[ci]!=chars2conll1[ci-1] && left.size()>2 && left.get(left.size()-2)!=null) {
 								for(int f = 0; f<left.get(left.size()-2).length; f++)
 									if(f!=col1)
-										left.get(left.size()-2)[f]=left.get(left.size()-2)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										left.get(left.size()-2)[f]=close(left.get(left.size()-2)[f]);
 							}
 
 							// IOBE(S) right
 							iobes="I-";
-							if(cj==0 || !chars2conll2.get(cj).equals(chars2conll2.get(cj-1)))
+							if(cj==0 || chars2conll2[cj]!=chars2conll2[cj-1])
 								iobes="B-";
-							if(cj==chars2conll2.size()-1) iobes=iobes.replaceFirst("^I-","E-").replaceFirst("^B-","S-");
+							if(cj==chars2conll2.length-1) iobes=close(iobes);
 							for(int f = 0; f<right.get(right.size()-1).length; f++)
 								if(f!=col2)
 									right.get(right.size()-1)[f]=(iobes+right.get(right.size()-1)[f]);							
-							if(cj>0 && !chars2conll2.get(cj).equals(chars2conll2.get(cj-1)) && right.size()>2 && right.get(right.size()-2)!=null) {
+							if(cj>0 && chars2conll2[cj]!=chars2conll2[cj-1] && right.size()>2 && right.get(right.size()-2)!=null) {
 								for(int f = 0; f<right.get(right.size()-2).length; f++)
 									if(f!=col2)
-										right.get(right.size()-2)[f]=right.get(right.size()-2)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										right.get(right.size()-2)[f]=close(right.get(right.size()-2)[f]);
 							}
 							
 							ci++;
@@ -264,53 +404,53 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 							
 						}
 					} else if (cDelta.getOriginal().size()*cDelta.getRevised().size()==1) { 		// 1:1 replacements => append to last subtoken or create a new one
-						if(ci>0 && cj>0 && chars2conll1.get(ci-1).equals(chars2conll1.get(ci)) && chars2conll2.get(cj-1).equals(chars2conll2.get(cj))) {
-							left.get(left.size()-1)[col1]=left.get(left.size()-1)[col1]+chars1.get(ci);
-							right.get(right.size()-1)[col2]=right.get(right.size()-1)[col2]+chars2.get(cj);
+						if(ci>0 && cj>0 && chars2conll1[ci-1]==chars2conll1[ci] && chars2conll2[cj-1]==chars2conll2[cj]) {
+							left.get(left.size()-1)[col1]=left.get(left.size()-1)[col1]+str(chars1[ci]);
+							right.get(right.size()-1)[col2]=right.get(right.size()-1)[col2]+str(chars2[cj]);
 							
 							// IOBE(S)
-							if(ci==chars2conll1.size() && cj==chars2conll2.size()) {
+							if(ci==chars2conll1.length && cj==chars2conll2.length) {
 								for(int f = 0; f<left.get(left.size()-1).length; f++)
 									if(f!=col1)
-										left.get(left.size()-1)[f]=left.get(left.size()-1)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										left.get(left.size()-1)[f]=close(left.get(left.size()-1)[f]);
 								for(int f = 0; f<right.get(right.size()-1).length; f++)
 									if(f!=col2)
-										right.get(right.size()-1)[f]=right.get(right.size()-1)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										right.get(right.size()-1)[f]=close(right.get(right.size()-1)[f]);
 							}									
 							ci++;
 							cj++;
 						} else { // new subtoken
-							left.add(Arrays.copyOf(conll1.get(chars2conll1.get(ci)),conll1.get(chars2conll1.get(ci)).length));
-							if(left.get(left.size()-1).length>col1) left.get(left.size()-1)[col1]=chars1.get(ci);
-							right.add(Arrays.copyOf(conll2.get(chars2conll2.get(cj)),conll2.get(chars2conll2.get(cj)).length));
-							if(right.get(right.size()-1).length>0) right.get(right.size()-1)[col2]=chars2.get(cj);
+							left.add(conll1.get(chars2conll1[ci]), chars2conll1[ci]);
+							if(left.get(left.size()-1).length>col1) left.get(left.size()-1)[col1]=str(chars1[ci]);
+							right.add(conll2.get(chars2conll2[cj]), chars2conll2[cj]);
+							if(right.get(right.size()-1).length>0) right.get(right.size()-1)[col2]=str(chars2[cj]);
 							
 							// IOBE(S) left
 							String iobes="I-";
-							if(ci==0 || !chars2conll1.get(ci).equals(chars2conll1.get(ci-1)))
+							if(ci==0 || chars2conll1[ci]!=chars2conll1[ci-1])
 								iobes="B-";
-							if(ci==chars2conll1.size()-1) iobes=iobes.replaceFirst("^I-","E-").replaceFirst("^B-","S-");
+							if(ci==chars2conll1.length-1) iobes=close(iobes);
 							for(int f = 0; f<left.get(left.size()-1).length; f++)
 								if(f!=col1)
 									left.get(left.size()-1)[f]=(iobes+left.get(left.size()-1)[f]);							
-							if(ci>0 && !chars2conll1.get(ci).equals(chars2conll1.get(ci-1)) && left.size()>2 && left.get(left.size()-2)!=null) {
+							if(ci>0 && chars2conll1[ci]!=chars2conll1[ci-1] && left.size()>2 && left.get(left.size()-2)!=null) {
 								for(int f = 0; f<left.get(left.size()-2).length; f++)
 									if(f!=col1)
-										left.get(left.size()-2)[f]=left.get(left.size()-2)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										left.get(left.size()-2)[f]=close(left.get(left.size()-2)[f]);
 							}
 
 							// IOBE(S) right
 							iobes="I-";
-							if(cj==0 || !chars2conll2.get(cj).equals(chars2conll2.get(cj-1)))
+							if(cj==0 || chars2conll2[cj]!=chars2conll2[cj-1])
 								iobes="B-";
-							if(cj==chars2conll2.size()-1) iobes=iobes.replaceFirst("^I-","E-").replaceFirst("^B-","S-");
+							if(cj==chars2conll2.length-1) iobes=close(iobes);
 							for(int f = 0; f<right.get(right.size()-1).length; f++)
 								if(f!=col2)
 									right.get(right.size()-1)[f]=(iobes+right.get(right.size()-1)[f]);							
-							if(cj>0 && !chars2conll2.get(cj).equals(chars2conll2.get(cj-1)) && right.size()>2 && right.get(right.size()-2)!=null) {
+							if(cj>0 && chars2conll2[cj]!=chars2conll2[cj-1] && right.size()>2 && right.get(right.size()-2)!=null) {
 								for(int f = 0; f<right.get(right.size()-2).length; f++)
 									if(f!=col2)
-										right.get(right.size()-2)[f]=right.get(right.size()-2)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+										right.get(right.size()-2)[f]=close(right.get(right.size()-2)[f]);
 							}							
 
 							ci++;
@@ -320,37 +460,37 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 					} else {																	// n:m replacements
 						cd++;
 						for(int o=0; o<cDelta.getOriginal().size(); o++) {
-							if(ci>0 && right.get(right.size()-1)==null && chars2conll1.get(ci-1).equals(chars2conll1.get(ci))) {
-								left.get(left.size()-1)[col1]=left.get(left.size()-1)[col1]+chars1.get(ci);		// append to last stok
+							if(ci>0 && right.get(right.size()-1)==null && chars2conll1[ci-1]==chars2conll1[ci]) {
+								left.get(left.size()-1)[col1]=left.get(left.size()-1)[col1]+str(chars1[ci]);		// append to last stok
 								
 								// IOBE(S)
-								if(ci==chars2conll1.size()-1) 
+								if(ci==chars2conll1.length-1) 
 									for(int f = 0; f<left.get(left.size()-1).length; f++)
 										if(f!=col1)
-											left.get(left.size()-1)[f]=left.get(left.size()-1)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+											left.get(left.size()-1)[f]=close(left.get(left.size()-1)[f]);
 							
 								ci++;									
 							} else {																	// create new stok
-								String[] array = Arrays.copyOf(conll1.get(chars2conll1.get(ci)),conll1.get(chars2conll1.get(ci)).length);
+								String[] array = conll1.get(chars2conll1[ci]);
 								if(array.length==0) {
 									array=new String[col1+1];
 									Arrays.fill(array,"");	
 								}
-								array[col1]=chars1.get(ci);
-								left.add(array);
+								array[col1]=str(chars1[ci]);
+								left.add(array, chars2conll1[ci]);
 								
 								// IOBE(S) left
 								String iobes="I-";
-								if(ci==0 || !chars2conll1.get(ci).equals(chars2conll1.get(ci-1)))
+								if(ci==0 || chars2conll1[ci]!=chars2conll1[ci-1])
 									iobes="B-";
-								if(ci==chars2conll1.size()-1) iobes=iobes.replaceFirst("^I-","E-").replaceFirst("^B-","S-");
+								if(ci==chars2conll1.length-1) iobes=close(iobes);
 								for(int f = 0; f<left.get(left.size()-1).length; f++)
 									if(f!=col1)
 										left.get(left.size()-1)[f]=(iobes+left.get(left.size()-1)[f]);							
-								if(ci>0 && !chars2conll1.get(ci).equals(chars2conll1.get(ci-1)) && left.size()>2 && left.get(left.size()-2)!=null) {
+								if(ci>0 && chars2conll1[ci]!=chars2conll1[ci-1] && left.size()>2 && left.get(left.size()-2)!=null) {
 									for(int f = 0; f<left.get(left.size()-2).length; f++)
 										if(f!=col1)
-											left.get(left.size()-2)[f]=left.get(left.size()-2)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+											left.get(left.size()-2)[f]=close(left.get(left.size()-2)[f]);
 								}
 								
 								ci++;
@@ -359,38 +499,38 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 						}
 						
 						for(int r = 0; r<cDelta.getRevised().size(); r++) {
-							if(cj>0 && left.get(left.size()-1)==null && chars2conll2.get(cj-1).equals(chars2conll2.get(cj))) {
-								right.get(right.size()-1)[col2]=right.get(right.size()-1)[col2]+chars2.get(cj);		// append to last stok
+							if(cj>0 && left.get(left.size()-1)==null && chars2conll2[cj-1]==chars2conll2[cj]) {
+								right.get(right.size()-1)[col2]=right.get(right.size()-1)[col2]+str(chars2[cj]);		// append to last stok
 
 								// IOBE(S)
-								if(cj==chars2conll2.size()-1) 
+								if(cj==chars2conll2.length-1) 
 									for(int f = 0; f<right.get(right.size()-1).length; f++)
 										if(f!=col2)
-											right.get(right.size()-1)[f]=right.get(right.size()-1)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+											right.get(right.size()-1)[f]=close(right.get(right.size()-1)[f]);
 
 								cj++;
 								
 							} else {
-								String[] array = Arrays.copyOf(conll2.get(chars2conll2.get(cj)),conll2.get(chars2conll2.get(cj)).length);
+								String[] array = conll2.get(chars2conll2[cj]);
 								if(array.length==0) {
 									array=new String[col2+1];
 									Arrays.fill(array,"");	
 								}
-								array[col2]=chars2.get(cj);
-								right.add(array);
+								array[col2]=str(chars2[cj]);
+								right.add(array, chars2conll2[cj]);
 								
 								// IOBE(S) right
 								String iobes="I-";
-								if(cj==0 || !chars2conll2.get(cj).equals(chars2conll2.get(cj-1)))
+								if(cj==0 || chars2conll2[cj]!=chars2conll2[cj-1])
 									iobes="B-";
-								if(cj==chars2conll2.size()-1) iobes=iobes.replaceFirst("^I-","E-").replaceFirst("^B-","S-");
+								if(cj==chars2conll2.length-1) iobes=close(iobes);
 								for(int f = 0; f<right.get(right.size()-1).length; f++)
 									if(f!=col2)
 										right.get(right.size()-1)[f]=(iobes+right.get(right.size()-1)[f]);							
-								if(cj>0 && !chars2conll2.get(cj).equals(chars2conll2.get(cj-1)) && right.size()>2 && right.get(right.size()-2)!=null) {
+								if(cj>0 && chars2conll2[cj]!=chars2conll2[cj-1] && right.size()>2 && right.get(right.size()-2)!=null) {
 									for(int f = 0; f<right.get(right.size()-2).length; f++)
 										if(f!=col2)
-											right.get(right.size()-2)[f]=right.get(right.size()-2)[f].replaceFirst("^B-","S-").replaceFirst("^I-","E-");
+											right.get(right.size()-2)[f]=close(right.get(right.size()-2)[f]);
 								}
 								
 								cj++;
@@ -400,109 +540,244 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 					}
 				}
 				
-				Vector<Vector<String[]>> result = new Vector<Vector<String[]>>();
+				List<Rows> result = new ArrayList<Rows>();
 				result.add(left);
 				result.add(right);
 				return result;
 			}
 
 	
+	/** IOBES prefix of an annotation, i.e., X- with X one of I, O, B, E, S */
+	protected static enum IOBES {
+		I, O, B, E, S;
+
+		/** prefix of anno, null if none */
+		protected static IOBES of(String anno) {
+			if(anno==null || anno.length()<2 || anno.charAt(1)!='-') return null;
+			return of(anno.charAt(0));
+		}
+
+		/** prefix letter c, null if none */
+		protected static IOBES of(char c) {
+			switch(c) {
+				case 'I': return I;
+				case 'O': return O;
+				case 'B': return B;
+				case 'E': return E;
+				case 'S': return S;
+				default: return null;
+			}
+		}
+
+		/** anno with this prefix instead of its own */
+		protected String replace(String anno) {
+			return name()+anno.substring(1);
+		}
+	}
+
+	/** close an IOBES annotation, i.e., B- becomes S-, I- becomes E- */
+	protected static String close(String anno) {
+		IOBES prefix = IOBES.of(anno);
+		if(prefix==IOBES.B) return IOBES.S.replace(anno);
+		if(prefix==IOBES.I) return IOBES.E.replace(anno);
+		return anno;
+	}
+
+	/** rules for undoing nested IOBES, applied in this order: outer prefixes, inner prefix, result */
+	private static final String[][] NESTED = {
+		{ "IOBES", "I", "I" }, { "IOBES", "O", "O" },
+		{ "I", "S", "I" }, { "B", "S", "B" }, { "E", "S", "E" }, { "S", "S", "S" },
+		{ "SB", "B", "B" }, { "IOE", "B", "I" },
+		{ "ES", "E", "E" }, { "IOB", "E", "I" }
+	};
+
+	/** index of the first line terminator (as for the regex <code>.</code>) in s from from, -1 if none */
+	protected static int lineBreak(String s, int from) {
+		for(int i = from; i<s.length(); i++)
+			switch(s.charAt(i)) {
+				case '\n': case '\r': case '\u0085': case '\u2028': case '\u2029': return i;
+			}
+		return -1;
+	}
+
+	/** true if s has two IOBES prefixes, i.e., <code>s.matches("^[IOBES]-[IOBES]-.*")</code> */
+	private static boolean isNested(String s) {
+		return s.length()>=4 && IOBES.of(s)!=null && IOBES.of(s.charAt(2))!=null && s.charAt(3)=='-' && lineBreak(s,4)<0;
+	}
+
+	/** true if s has prefix I- or E-, i.e., <code>s.matches("^[IE]-.*")</code> */
+	private static boolean isInsideOrEnd(String s) {
+		IOBES prefix = IOBES.of(s);
+		return (prefix==IOBES.I || prefix==IOBES.E) && lineBreak(s,2)<0;
+	}
+
+	/** true if the body of s (after removing prefix p1- or p2-, if any) is the body of anno (after its prefix) */
+	private static boolean sameBody(String s, IOBES p1, IOBES p2, String anno) {
+		IOBES prefix = IOBES.of(s);
+		int from = (prefix==p1 || prefix==p2) ? 2 : 0;
+		return s.length()-from==anno.length()-2 && s.regionMatches(from, anno, 2, anno.length()-2);
+	}
+
+	/** true if a neighbour search accepts this cell */
+	private static boolean isAnno(String cell) {
+		return !cell.equals("?") && !cell.equals("");
+	}
+
+	/** for every row, the next cell of every column that is neither ? nor empty, in any row below (including comments), null if none
+	 * or if the row is null */
+	private static String[][] nextAnnos(List<String[]> lines) {
+		String[][] result = new String[lines.size()][];
+		String[] next = new String[0];
+		for(int i = lines.size()-1; i>=0; i--) {
+			String[] row = lines.get(i);
+			if(row==null) continue;
+			result[i]=Arrays.copyOf(next, row.length);
+			if(next.length<row.length) next=Arrays.copyOf(next, row.length);
+			for(int j = 0; j<row.length; j++)
+				if(isAnno(row[j])) next[j]=row[j];
+		}
+		return result;
+	}
+
+	/** update the last cell of every column that is neither ? nor empty with row */
+	private static String[] lastAnnos(String[] last, String[] row) {
+		if(row==null) return last;
+		if(last.length<row.length) last=Arrays.copyOf(last, row.length);
+		for(int j = 0; j<row.length; j++)
+			if(isAnno(row[j])) last[j]=row[j];
+		return last;
+	}
+
 	/** helper routine for split():
 		(1) undo nested IOBES (may be lossy)
 		(2) enforce IOBES validity (proper opening and closing)
 		side-effect: converts IOB to IOBES <br/>
 		may duplicate annotations, hence apply after undoIOBES4syntax() <br/>
-		note that this routine may corrupt annotations if they contain I-,O-,B-,E-,S- as part of the annotation */
-	protected Vector<String[]> repairIOBES(Vector<String[]> lines) {
+		note that this routine may corrupt annotations if they contain I-,O-,B-,E-,S- as part of the annotation <br/>
+		two linear passes without regex: neighbours are precomputed by nextAnnos() and lastAnnos() */
+	protected List<String[]> repairIOBES(List<String[]> lines) {
 		// (1) undo nested IOBES
 		for(int i = 0; i<lines.size(); i++) 
 			if(lines.get(i)!=null && lines.get(i).length>0 && !lines.get(i)[0].trim().startsWith("#"))
-				for(int j = 0; j<lines.get(i).length; j++) {
-					String anno = lines.get(i)[j];
-					while(anno.matches("^[IOBES]-[IOBES]-.*")) 
-						anno=anno.replaceFirst("^[IOBES]-I-","I-")
-								 .replaceFirst("^[IOBES]-O-","O-")
-								 .replaceFirst("^I-S-","I-")
-								 .replaceFirst("^B-S-","B-")
-								 .replaceFirst("^E-S-","E-")
-								 .replaceFirst("^S-S-","S-")
-								 .replaceFirst("^[SB]-B-","B-")
-								 .replaceFirst("^[IOE]-B-","I-")
-								 .replaceFirst("^[ES]-E-","E-")
-								 .replaceFirst("^[IOB]-E-","I-");
-					anno=anno.replaceFirst("^[IOBES]-\\*$","*")
-							 .replaceFirst("^[IOBES]-_","_");
-					while(anno.matches("^(.*\\+)?[IOBES]-O(\\+.*)?$")) 												// don't split (I)O(BES)
-						anno=anno.replaceAll("^(.*\\+)?[IOBES]-O(\\+.*)?$","$1O$2");
-					while(anno.endsWith("+O") || anno.startsWith("O+") || anno.contains("+O+"))														// simplify X+O+Y to X+Y
-						anno=anno.replaceAll("\\+O\\+","+").replaceAll("^O\\+","").replaceAll("\\+O$","");
-					lines.get(i)[j]=anno;
-				}
-
-
+				for(int j = 0; j<lines.get(i).length; j++)
+					lines.get(i)[j]=unnest(lines.get(i)[j]);
 				
 		// (2) enforce IOBES validity
-		for(int i = 0; i<lines.size(); i++) 
+		String[][] next = nextAnnos(lines);
+		String[] last = new String[0];
+		for(int i = 0; i<lines.size(); i++) {
 			if(lines.get(i)!=null && lines.get(i).length>0 && !lines.get(i)[0].trim().startsWith("#"))
 				for(int j = 0; j<lines.get(i).length; j++) {
 					String anno = lines.get(i)[j];
-					String nextAnno = null;
-					for(int k = i+1;k<lines.size() && nextAnno==null; k++)
-						if(lines.get(k)!=null && lines.get(k).length>j && !lines.get(k)[j].equals("?") && !lines.get(k)[j].equals(""))
-							nextAnno = lines.get(k)[j];
-					String lastAnno = null;
-					for(int k = i-1;k>=0 && lastAnno==null; k--)
-						if(lines.get(k)!=null && lines.get(k).length>j && !lines.get(k)[j].equals("?") && !lines.get(k)[j].equals(""))
-							lastAnno = lines.get(k)[j];
-					if(anno.matches("^[IOBES]-.+")) {
-						String iobesBody = anno.substring(2);
-						if(lastAnno==null || !lastAnno.replaceFirst("^[BI]-","").equals(iobesBody))
-							anno=anno.replaceFirst("^I-","B-").replaceFirst("^E-","S-");
-						if(nextAnno==null || !nextAnno.replaceFirst("^[EI]-","").equals(iobesBody))
-							anno=anno.replaceFirst("^I-","E-").replaceFirst("^B-","S-");
+					IOBES prefix = IOBES.of(anno);
+					if(prefix!=null && anno.length()>2 && lineBreak(anno,2)<0) {
+						IOBES repaired = prefix;
+						String lastAnno = j<last.length ? last[j] : null;
+						String nextAnno = next[i][j];
+						if(lastAnno==null || !sameBody(lastAnno, IOBES.B, IOBES.I, anno))
+							repaired = (repaired==IOBES.I ? IOBES.B : repaired==IOBES.E ? IOBES.S : repaired);
+						if(nextAnno==null || !sameBody(nextAnno, IOBES.E, IOBES.I, anno))
+							repaired = (repaired==IOBES.I ? IOBES.E : repaired==IOBES.B ? IOBES.S : repaired);
+						if(repaired!=prefix)
+							lines.get(i)[j]=repaired.replace(anno);
 					}
-					lines.get(i)[j]=anno;
 				}
+			last=lastAnnos(last, lines.get(i));
+		}
 		
 		return lines;
 	}
 
+	/** step (1) of repairIOBES() for a single annotation */
+	protected static String unnest(String anno) {
+		while(isNested(anno)) {
+			String result = anno;
+			for(String[] rule : NESTED)
+				if(result.length()>=4 && result.charAt(1)=='-' && result.charAt(3)=='-' &&
+				   rule[0].indexOf(result.charAt(0))>=0 && rule[1].charAt(0)==result.charAt(2))
+					result = rule[2]+result.substring(3);
+			if(result.equals(anno)) break;		// no rule for O-S-
+			anno=result;
+		}
+		if(anno.length()>=3 && IOBES.of(anno)!=null && anno.charAt(2)=='*' && isEnd(anno, 3))
+			anno=anno.substring(2);
+		else if(anno.length()>=3 && IOBES.of(anno)!=null && anno.charAt(2)=='_')
+			anno=anno.substring(2);
+
+		if(lineBreak(anno,0)>=0) {		// rare enough to leave it to java.util.regex, cf. CoNLLReader
+			while(anno.endsWith("+O") || anno.startsWith("O+") || anno.contains("+O+"))
+				anno=anno.replaceAll("\\+O\\+","+").replaceAll("^O\\+","").replaceAll("\\+O$","");
+			return anno;
+		}
+		if(anno.indexOf('+')<0) {
+			if(anno.length()==3 && IOBES.of(anno)!=null && anno.charAt(2)=='O')		// don't split (I)O(BES)
+				return "O";
+			return anno;
+		}
+
+		// don't split (I)O(BES), simplify X+O+Y to X+Y, i.e., drop O, unless all are O
+		StringBuilder result = new StringBuilder(anno.length());
+		int parts = 0;
+		int kept = 0;
+		for(int from = 0; from<=anno.length(); parts++) {
+			int to = anno.indexOf('+', from);
+			if(to<0) to = anno.length();
+			boolean o = (to-from==1 && anno.charAt(from)=='O') || (to-from==3 && IOBES.of(anno.charAt(from))!=null && anno.charAt(from+1)=='-' && anno.charAt(from+2)=='O');
+			if(!o) {
+				if(kept++>0) result.append('+');
+				result.append(anno, from, to);
+			}
+			from=to+1;
+		}
+		if(kept==parts) return anno;
+		if(kept==0) return "O";
+		return result.toString();
+	}
+
+	/** true if s ends at i, or at a final line terminator after i, as for the regex <code>$</code> */
+	private static boolean isEnd(String s, int i) {
+		if(i==s.length()) return true;
+		if(i+2==s.length() && s.charAt(i)=='\r' && s.charAt(i+1)=='\n') return true;
+		return i+1==s.length() && lineBreak(s, i)==i;
+	}
+
 	/** helper routine for split(): 
 		undo IOBES prefixing for syntax (i.e., annotations with non-balanced parentheses)
 		to make sure that parentheses match <br/>
 		also, we remove IOBES marking for _<br/>
 		
-		IOBES fixing routine
+		IOBES fixing routine, one linear pass without regex, cf. repairIOBES()
 	*/ 
-	protected Vector<String[]> undoIOBES4syntax(Vector<String[]> lines) {
-		for(int i = 0; i<lines.size(); i++)
+	protected List<String[]> undoIOBES4syntax(List<String[]> lines) {
+		String[][] next = nextAnnos(lines);
+		String[] last = new String[0];
+		for(int i = 0; i<lines.size(); i++) {
 			if(lines.get(i)!=null && lines.get(i).length>0 && !lines.get(i)[0].trim().startsWith("#"))
 				for(int j = 0; j<lines.get(i).length; j++) {
 					String anno = lines.get(i)[j];
 					
-					int leftPar = anno.replaceAll("[^\\(]","").length();
-					int rightPar = anno.replaceAll("[^\\)]","").length();
-					if(leftPar!=rightPar || anno.matches("^[IOBES]-[\\?_]$")) { // possible for syntax => we remove IOBES, note that we keep it for matching sequences
-
-						String nextAnno = null;		// fix IOBES (we don't generally apply this fix, might interfere with nested IOBES annotations)
-						String lastAnno = null;
-						for(int k = i+1;k<lines.size() && nextAnno==null; k++)
-							if(lines.get(k)!=null && lines.get(k).length>j && !lines.get(k)[j].equals("?") && !lines.get(k)[j].equals(""))
-								nextAnno = lines.get(k)[j];							
-						for(int k = i-1;k>=0 && lastAnno==null; k--)
-							if(lines.get(k)!=null && lines.get(k).length>j && !lines.get(k)[j].equals("?") && !lines.get(k)[j].equals(""))
-								lastAnno = lines.get(k)[j];							
-
-						if(anno.startsWith("B-") && lastAnno!=null && lastAnno.equals(anno)) anno=anno.replaceFirst("B-","I-");
-						if(anno.startsWith("B-") && (nextAnno==null || !nextAnno.matches("^[IE]-.*"))) anno=anno.replaceFirst("B","S");
-						if(anno.startsWith("I-") && (nextAnno==null || !nextAnno.matches("^[IE]-.*"))) anno=anno.replaceFirst("I","E");
-						if(anno.startsWith("E-") && nextAnno!=null && nextAnno.equals(anno)) anno=anno.replaceFirst("E-","I-");
+					int leftPar = 0;
+					int rightPar = 0;
+					for(int c = 0; c<anno.length(); c++)
+						if(anno.charAt(c)=='(') leftPar++;
+						else if(anno.charAt(c)==')') rightPar++;
+					if(leftPar!=rightPar || (anno.length()==3 && IOBES.of(anno)!=null && (anno.charAt(2)=='?' || anno.charAt(2)=='_'))) { // possible for syntax => we remove IOBES, note that we keep it for matching sequences
+
+						String nextAnno = next[i][j];		// fix IOBES (we don't generally apply this fix, might interfere with nested IOBES annotations)
+						String lastAnno = j<last.length ? last[j] : null;
+
+						if(anno.startsWith("B-") && lastAnno!=null && lastAnno.equals(anno)) anno=IOBES.I.replace(anno);
+						if(anno.startsWith("B-") && (nextAnno==null || !isInsideOrEnd(nextAnno))) anno=IOBES.S.replace(anno);
+						if(anno.startsWith("I-") && (nextAnno==null || !isInsideOrEnd(nextAnno))) anno=IOBES.E.replace(anno);
+						if(anno.startsWith("E-") && nextAnno!=null && nextAnno.equals(anno)) anno=IOBES.I.replace(anno);
 					
 						if(anno.startsWith("B-")) {
 							anno=anno.substring(2);
-							if(anno.contains("*")) {
-								anno=anno.replaceFirst("\\*.*","*");
-							} else anno=anno;
+							int star = anno.indexOf('*');
+							if(star>=0) {		// remove everything after *, up to a line terminator
+								int end = lineBreak(anno, star);
+								anno=anno.substring(0, star+1)+(end<0 ? "" : anno.substring(end));
+							}
 						} else if(anno.startsWith("I-")) {
 							if(anno.contains("*"))
 								anno="*";
@@ -510,16 +785,17 @@ public class CoNLLAlignSubTok extends CoNLLAlign {
 						} else if(anno.startsWith("E-")) {
 							anno=anno.substring(2);
 							if(anno.contains("*"))
-								anno=anno.replaceFirst("^[^\\*]*\\*","\\*");
+								anno=anno.substring(anno.indexOf('*'));
 							else anno="_";
 						}
 						else if(anno.startsWith("S-"))
 							anno=anno.substring(2);
 
-						// lines.get(i)[j]="("+lines.get(i)[j]+" after "+lastAnno+" before "+nextAnno+" >) "+anno; // DEBUG
 						lines.get(i)[j]=anno;
 					}
 				}
+			last=lastAnnos(last, lines.get(i));
+		}
 		return lines;
 	}
 	
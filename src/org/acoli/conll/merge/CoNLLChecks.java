@@ -1,9 +1,6 @@
 package org.acoli.conll.merge;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Stack;
@@ -35,20 +32,20 @@ public class CoNLLChecks {
 				+ "(5) cells without content (empty cells should have _)\n"					// ok
 				+ "(6) use full-line comments, not in-line comments (to ease merging)\n");			// ok
 		
-		List<Reader> ins = new Vector<Reader>();
+		List<CoNLLReader> ins = new Vector<CoNLLReader>();
 		List<String> files = Arrays.asList(argv);
 		for(String arg : argv)
-			ins.add(new FileReader(arg));
+			ins.add(new CoNLLReader(new File(arg)));
 
 		if(ins.size()==0) {
 			System.err.println("\nreading from stdin");
-			ins.add(new InputStreamReader(System.in));
+			ins.add(new CoNLLReader(System.in));
 			files.add("<stdin>");
 		}
 		
 		for(int n = 0; n<ins.size(); n++) {
 			String file = files.get(n);
-			BufferedReader in = new BufferedReader(ins.get(n));
+			CoNLLReader in = ins.get(n);
 			System.err.println("\nchecking "+file);
 			int errors = 0;
 			int warnings = 0;
@@ -0,0 +1,252 @@
+package org.acoli.conll.merge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** regex-free line reader for CoNLL (TSV) files<br/>
+ * reads UTF-8 through an NIO channel into a reusable byte buffer and scans for line breaks and cell separators
+ * directly on the bytes. Strings are only built for lines or cells that are actually requested.<br/>
+ * Line breaks follow BufferedReader.readLine() (\n, \r or \r\n), cells follow CoNLLAlign.readCoNLL(), i.e.,
+ * <code>line.replaceAll("[\t ]*$","").split(" *\t+ *")</code>, with comments (<code>line.trim().startsWith("#")</code>)
+ * kept as a single cell */
+public class CoNLLReader implements Closeable {
+
+	protected final ReadableByteChannel in;
+
+	/** buffer, valid between 0 and limit, unconsumed from pos */
+	protected byte[] buf;
+	protected int pos = 0;
+	protected int limit = 0;
+	protected boolean eof = false;
+
+	/** file offset of buf[0] */
+	protected long base = 0;
+
+	/** current line, without line break */
+	protected int lineStart = -1;
+	protected int lineEnd = -1;
+	protected String line = null;
+
+	/** cell boundaries of the current line (start, end pairs), -1 if not split yet, -2 if this requires the regex fallback */
+	protected int cells = -1;
+	protected int[] bounds = new int[64];
+
+	public CoNLLReader(File file) throws IOException {
+		this(new FileInputStream(file).getChannel());
+	}
+
+	/** read file from the given byte offset, which should be the beginning of a line, offsets remain relative to the file */
+	public CoNLLReader(File file, long offset) throws IOException {
+		this(new FileInputStream(file).getChannel().position(offset));
+		this.base=offset;
+	}
+
+	public CoNLLReader(InputStream in) {
+		this(Channels.newChannel(in));
+	}
+
+	public CoNLLReader(ReadableByteChannel in) {
+		this.in=in;
+		this.buf=new byte[1<<20];
+	}
+
+	/** advance to the next line, false at the end of input */
+	public boolean next() throws IOException {
+		line=null;
+		cells=-1;
+		int t = pos;
+		while(true) {
+			while(t<limit && buf[t]!='\n' && buf[t]!='\r') t++;
+			if(t<limit && (buf[t]=='\n' || t+1<limit || eof)) break;	// for \r, we need to see the next byte
+			if(eof) {
+				if(pos==limit) {
+					lineStart=lineEnd=-1;
+					return false;
+				}
+				break;
+			}
+			t-=pos;
+			fill();
+			t+=pos;
+		}
+		lineStart=pos;
+		lineEnd=t;
+		if(t>=limit) pos=limit;
+		else if(buf[t]=='\r' && t+1<limit && buf[t+1]=='\n') pos=t+2;
+		else pos=t+1;
+		return true;
+	}
+
+	/** drop-in replacement for BufferedReader.readLine(): next line, null at the end of input */
+	public String readLine() throws IOException {
+		if(next()) return line();
+		return null;
+	}
+
+	/** compact the buffer and read more data, grow the buffer for overlong lines */
+	protected void fill() throws IOException {
+		if(pos>0) {
+			System.arraycopy(buf, pos, buf, 0, limit-pos);
+			base+=pos;
+			limit-=pos;
+			pos=0;
+		}
+		if(limit==buf.length)
+			buf=Arrays.copyOf(buf, buf.length*2);
+		ByteBuffer bb = ByteBuffer.wrap(buf, limit, buf.length-limit);
+		int n = in.read(bb);
+		while(n==0) n = in.read(bb);
+		if(n<0) eof=true;
+		else limit+=n;
+	}
+
+	/** byte offset of the current line in the input */
+	public long offset() {
+		return base+lineStart;
+	}
+
+	/** byte offset after the current line (and its line break) */
+	public long nextOffset() {
+		return base+pos;
+	}
+
+	/** current line, as returned by BufferedReader.readLine() */
+	public String line() {
+		if(line==null)
+			line=new String(buf, lineStart, lineEnd-lineStart, StandardCharsets.UTF_8);
+		return line;
+	}
+
+	/** <code>line().trim().startsWith("#")</code> */
+	public boolean isComment() {
+		int i = lineStart;
+		while(i<lineEnd && (buf[i] & 0xff)<=' ') i++;
+		return i<lineEnd && buf[i]=='#';
+	}
+
+	/** <code>line().trim().equals("")</code> */
+	public boolean isEmpty() {
+		for(int i = lineStart; i<lineEnd; i++)
+			if((buf[i] & 0xff)>' ') return false;
+		return true;
+	}
+
+	/** split the current line according to readCoNLL(), returns the number of cells */
+	public int cells() {
+		split();
+		if(cells==-2) return row().length;
+		return cells;
+	}
+
+	protected void split() {
+		if(cells!=-1) return;
+		if(isComment()) {
+			bounds[0]=lineStart;
+			bounds[1]=lineEnd;
+			cells=1;
+		} else if(endsWithUnicodeLineBreak()) {
+			cells=-2;		// $ also matches before a final NEL, LINE or PARAGRAPH SEPARATOR, rare enough to leave it to java.util.regex
+		} else if(!isUTF8()) {
+			cells=-2;		// malformed input: work on the decoded String, so that cells with the same decoding have the same bytes
+		} else {
+			int end = lineEnd;
+			while(end>lineStart && (buf[end-1]=='\t' || buf[end-1]==' ')) end--;
+			cells=split(lineStart, end);
+		}
+	}
+
+	/** emulates String.split(" *\t+ *") on buf[from..to] */
+	protected int split(int from, int to) {
+		int n = 0;
+		int p = from;
+		int t = from;
+		while(true) {
+			while(t<to && buf[t]!='\t') t++;
+			if(t>=to) break;
+			int s = t;
+			while(s>p && buf[s-1]==' ') s--;
+			n=addCell(n, p, s);
+			while(t<to && buf[t]=='\t') t++;
+			while(t<to && buf[t]==' ') t++;
+			p=t;
+		}
+		if(n==0) return addCell(n, from, to);		// no separator found, return input
+		n=addCell(n, p, to);
+		while(n>0 && bounds[2*n-1]==bounds[2*n-2]) n--;	// drop trailing empty cells
+		return n;
+	}
+
+	private int addCell(int n, int start, int end) {
+		if(2*n+1>=bounds.length) bounds=Arrays.copyOf(bounds, bounds.length*2);
+		bounds[2*n]=start;
+		bounds[2*n+1]=end;
+		return n+1;
+	}
+
+	/** true if the current line is well-formed UTF-8 */
+	protected boolean isUTF8() {
+		int i = lineStart;
+		while(i<lineEnd) {
+			int b = buf[i] & 0xff;
+			if(b<0x80) {
+				i++;
+				continue;
+			}
+			int n;
+			int min;
+			if(b>=0xc2 && b<=0xdf) { n=1; min=0x80; }
+			else if(b>=0xe0 && b<=0xef) { n=2; min=0x800; }
+			else if(b>=0xf0 && b<=0xf4) { n=3; min=0x10000; }
+			else return false;
+			if(i+n>=lineEnd) return false;
+			int c = b & (0x3f>>n);
+			for(int j = 1; j<=n; j++) {
+				int cont = buf[i+j] & 0xff;
+				if((cont & 0xc0)!=0x80) return false;
+				c = (c<<6) | (cont & 0x3f);
+			}
+			if(c<min || c>0x10ffff || (c>=0xd800 && c<=0xdfff)) return false;
+			i+=n+1;
+		}
+		return true;
+	}
+
+	private boolean endsWithUnicodeLineBreak() {
+		int l = lineEnd-lineStart;
+		if(l>=2 && (buf[lineEnd-2] & 0xff)==0xc2 && (buf[lineEnd-1] & 0xff)==0x85) return true;
+		if(l>=3 && (buf[lineEnd-3] & 0xff)==0xe2 && (buf[lineEnd-2] & 0xff)==0x80 &&
+		   ((buf[lineEnd-1] & 0xff)==0xa8 || (buf[lineEnd-1] & 0xff)==0xa9)) return true;
+		return false;
+	}
+
+	/** i-th cell of the current line, call cells() before, not applicable to lines with unicode line breaks (use row()) */
+	public String cell(int i) {
+		return new String(buf, bounds[2*i], bounds[2*i+1]-bounds[2*i], StandardCharsets.UTF_8);
+	}
+
+	/** current line split according to readCoNLL() */
+	public String[] row() {
+		split();
+		if(cells==-2) {
+			if(line().trim().startsWith("#"))
+				return new String[] { line() };
+			return line().replaceAll("[\t ]*$","").split(" *\t+ *");
+		}
+		String[] result = new String[cells];
+		for(int i = 0; i<cells; i++)
+			result[i]=cell(i);
+		return result;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -1,233 +1,658 @@
 package org.acoli.conll.merge;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /** EXPERIMENTAL: split CoNLL files, then feed them into CoNLLAlign <br/>
 	note that this uses heuristic techniques and may lead to losses at the intersection between alignment windows
-	accordingly, these are marked explicitly as comments
+	accordingly, these are marked explicitly as comments. To reduce these losses, windows end at sentence boundaries (empty lines)
+	where possible
 	
-	also note that alignment quality increases with comments being dropped, so, this is done by default
+	also note that alignment quality increases with comments being dropped, so, this is done by default <br/>
+	
+	windows are aligned in memory (no temp files, no redirection of System.out), so that several mergers can run in parallel <br/>
+	
+	reading, aligning and writing are pipelined: while a window is aligned, one thread per file reads and splits the next lines,
+	and another thread writes the output of the last window. The stages are connected by bounded queues, so that a slow stage
+	blocks the others rather than piling up lines in memory
 */
 public class CoNLLStreamMerger {
-	
-	public static void main(String[] argv) throws Exception {
 
-		boolean DEBUG=false;
-	
-		int window = 10000;
-		boolean keepComments=false;
-		if(!Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-silent[,\\]].*"))
-			System.err.println("synopsis: CoNLLStreamMerger FILE1.tsv FILE2.tsv ALIGN_ARGS [-window=INT] [-keep-comments]\n"+
-				"\tFILEi.tsv      tab-separated text files, e.g. CoNLL format\n"+
-				"\tALIGN_ARGS     other arguments passed on to CoNLLAlign, see there\n"+
-				"\t-window=INT    number of lines for the alignment window, by default "+window+", larger windows increase runtime and quality\n"+
-				"\t-keep-comments skipping comments facilitates alignment and is thus default, use this to keep comments\n"+
-				"break argument files into segments, and apply CoNLLAlign iteratively");
+	protected static final boolean DEBUG=false;
+
+	/** lines per block handed over from a reader thread, blocks queued per reader */
+	protected static final int BLOCK = 1024;
+	protected static final int READ_AHEAD = 16;
+
+	/** windows queued for the writer thread */
+	protected static final int WRITE_BEHIND = 2;
+
+	/** flags of CoNLLAlign */
+	protected final CoNLLAlign.Options options;
+	protected final DiffEngine engine;
+
+	/** number of tokens of the alignment window, i.e., content rows (not counting empty lines and comments), at least, the window
+	 * is extended to the end of the sentence, but not beyond twice this size. Adapted after every window, cf. adapt() */
+	protected int window;
+	protected final int minWindow;
+
+	/** target time for aligning a window in ms, 0 for none */
+	protected final long latency;
+	protected final boolean keepComments;
+
+	public CoNLLStreamMerger(CoNLLAlign.Options options, int window, boolean keepComments) throws ReflectiveOperationException {
+		this(options, window, keepComments, 0);
+	}
+
+	/** @param window initial window size in tokens, windows may shrink to a quarter of this
+	 * @param latency target time for aligning a window in ms, 0 for none */
+	public CoNLLStreamMerger(CoNLLAlign.Options options, int window, boolean keepComments, long latency) throws ReflectiveOperationException {
+		this.options=options;
+		this.engine=options.engine();
+		this.window=window;
+		this.minWindow=Math.max(1, window/4);
+		this.latency=latency;
+		this.keepComments=keepComments;
+	}
+
+	/** merge file1 and file2 window by window into out, out is flushed, but not closed */
+	public void merge(CoNLLReader file1, CoNLLReader file2, Writer writer) throws IOException {
+		merge(file1, file2, writer, null, null);
+	}
+
+	/** merge file1 and file2 window by window into output, and save a checkpoint (output.checkpoint) after a window, at most
+	 * every interval ms. If resume and there is a checkpoint, continue from there, with the same output as an uninterrupted run
+	 * with the same arguments (unless windows were adapted to a latency target). The checkpoint is removed when done */
+	public void merge(File file1, File file2, File output, long interval, boolean resume) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(new File(output.getPath()+".checkpoint"), interval);
+		Properties state = resume ? checkpoint.load() : null;
+		if(state!=null && !(state.getProperty("file1").equals(file1.getAbsolutePath()) && state.getProperty("file2").equals(file2.getAbsolutePath())))
+			throw new IOException("checkpoint "+checkpoint.file+" was written for "+state.getProperty("file1")+" and "+state.getProperty("file2"));
+		if(state!=null)
+			System.err.println("resume from "+checkpoint.file+" at output offset "+state.getProperty("output"));
 
-		if(argv[argv.length-1].toLowerCase().equals("-keep-comments")) {
-			keepComments=true;
-			argv=Arrays.copyOfRange(argv,0,argv.length-1);
+		CoNLLReader in1 = new CoNLLReader(file1, state==null ? 0 : Long.parseLong(state.getProperty("start1")));
+		CoNLLReader in2 = new CoNLLReader(file2, state==null ? 0 : Long.parseLong(state.getProperty("start2")));
+		FileOutputStream out = new FileOutputStream(output, state!=null);
+		try {
+			checkpoint.output = out.getChannel();
+			if(state!=null)
+				checkpoint.output.truncate(Long.parseLong(state.getProperty("output")));
+			checkpoint.paths = new String[] { file1.getAbsolutePath(), file2.getAbsolutePath() };
+			merge(in1, in2, new OutputStreamWriter(out, StandardCharsets.UTF_8), checkpoint, state);
+		} finally {
+			in1.close();
+			in2.close();
+			out.close();
 		}
-				
-		if(argv[argv.length-1].toLowerCase().startsWith("-window=")) {
-			window=Integer.parseInt(argv[argv.length-1].replaceFirst("^.*=",""));
-			argv=Arrays.copyOfRange(argv,0,argv.length-1);
+		checkpoint.file.delete();
+	}
+
+	protected void merge(CoNLLReader file1, CoNLLReader file2, Writer writer, Checkpoint checkpoint, Properties state) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			Prefetch in1 = new Prefetch(file1);
+			Prefetch in2 = new Prefetch(file2);
+			in1.task = pool.submit(in1);
+			in2.task = pool.submit(in2);
+			Drain out = new Drain(writer, checkpoint);
+			out.task = pool.submit(out);
+			merge(in1, in2, out, checkpoint, state);
+		} finally {
+			pool.shutdownNow();
 		}
+	}
+
+	/** if state is not null, continue from this checkpoint, file1 and file2 must start at its start1 and start2 offsets */
+	protected void merge(Prefetch file1, Prefetch file2, Drain out, Checkpoint checkpoint, Properties state) throws IOException {
+		Window buffer1 = new Window(); 
+		Window buffer2 = new Window();
+		boolean eof1 = false;
+		boolean eof2 = false;
 
-		if(!Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-silent[,\\]].*")) {
-			argv=Arrays.copyOfRange(argv,0,argv.length+1);
-			argv[argv.length-1]="-silent";
+		// restore buffers as they were after the checkpointed window
+		if(state!=null) {
+			window = Integer.parseInt(state.getProperty("window"));
+			eof1 = restore(buffer1, file1, state, "1");
+			eof2 = restore(buffer2, file2, state, "2");
 		}
-		
-		int col1 = 0;
-		int col2 = 0;
-		try {
-			col1 = Integer.parseInt(argv[2]);
-			col2 = Integer.parseInt(argv[3]);
-		} catch (Exception e) {};
-		
-		HashSet<Integer> dropCols = new HashSet<Integer>();
-		if(!Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-drop[,\\]].*"))
-			dropCols.add(col2);
-		
-		int l = 0;
-		while(l<argv.length && !argv[l].toLowerCase().equals("-drop"))
-			l++;
-		while(l<argv.length) {
-			try {
-				dropCols.add(Integer.parseInt(argv[l++]));
-			} catch (NumberFormatException e) {}
-		}
-
-		
-		BufferedReader file1 = new BufferedReader(new FileReader(argv[0]));
-		BufferedReader file2 = new BufferedReader(new FileReader(argv[1]));
-		
-		Vector<String> buffer1 = null; 
-		Vector<String> buffer2 = null;
-		int buffer1Width=-1;
-		int buffer2Width=-1;
-		
-		File tmp1 = File.createTempFile("CoNLLStreamMerger",".tmp");
-		if(DEBUG) tmp1 = File.createTempFile("CoNLLStreamMerger",".tmp",new File("."));
-		tmp1.createNewFile();
-		if(!DEBUG) tmp1.deleteOnExit();
-
-		File tmp2 = File.createTempFile("CoNLLStreamMerger",".tmp");
-		if(DEBUG) tmp2 = File.createTempFile("CoNLLStreamMerger",".tmp",new File("."));
-		tmp2.createNewFile();
-		if(!DEBUG) tmp2.deleteOnExit();
-		argv[0]=tmp1.toString();
-		argv[1]=tmp2.toString();
-
-		while(buffer1==null || buffer2==null || buffer1.size()>0 || buffer2.size()>0) {
-
-			// create buffers
-			if(buffer1==null) buffer1=new Vector<String>();
-			if(buffer2==null) buffer2=new Vector<String>();
 
-			// fill buffers
-			try {
-				while(buffer1.size()<window) {
-					buffer1.add(file1.readLine());
-					buffer1Width=Math.max(buffer1Width,buffer1.get(buffer1.size()-1).split("\t").length);
-					if(!keepComments && buffer1.get(buffer1.size()-1).trim().startsWith("#")) buffer1.remove(buffer1.size()-1); // comments interfere with alignment
-				}
-			} catch (IOException e) {}
-			
-			try {
-				while(buffer2.size()<window) {
-					buffer2.add(file2.readLine());
-					buffer2Width=Math.max(buffer2Width,buffer2.get(buffer2.size()-1).split("\t").length);
-					if(!keepComments && buffer2.get(buffer2.size()-1).trim().startsWith("#")) buffer2.remove(buffer2.size()-1); // comments interfere with alignment
+		// fill buffers
+		eof1 = eof1 || !fill(buffer1, file1);
+		eof2 = eof2 || !fill(buffer2, file2);
+
+		while(buffer1.size()>0 || buffer2.size()>0) {
+
+			// if one side has no tokens left, nothing of the other side can align anymore, so we write its windows as a whole
+			// (the last one as at the end of input), once that side has no lines left, CoNLLAlign writes nothing of the other side
+			// (it stops at the end of either input), so its windows are skipped up to the last one
+			boolean tail = eof1 && buffer1.tokens==0 || eof2 && buffer2.tokens==0;
+			if(tail) {
+				eof1 = eof1 || !file1.hasNext();
+				eof2 = eof2 || !file2.hasNext();
+				if(!(eof1 && eof2) && (buffer1.size()==0 || buffer2.size()==0)) {
+					buffer1.clear();
+					buffer2.clear();
+					eof1 = eof1 || !fill(buffer1, file1);
+					eof2 = eof2 || !fill(buffer2, file2);
+					continue;
 				}
-			} catch (IOException e) {}
-			
-			// write buffers to tmp files
-			tmp1.delete();
-			tmp1.createNewFile();
-			FileWriter out1 = new FileWriter(tmp1);
-			for(String s : buffer1)
-				out1.write(s+"\n");
-			out1.close();
-
-			tmp2.delete();
-			tmp2.createNewFile();			
-			FileWriter out2 = new FileWriter(tmp2);
-			for(String s : buffer2)
-				out2.write(s+"\n");
-			out2.close();
-			
-			// CoNLLAlign and write to String
-			ByteArrayOutputStream merged = new ByteArrayOutputStream();
-			PrintStream out = System.out;
-			System.setOut(new PrintStream(merged));
-			
-			if(DEBUG) System.err.println("CoNLLAlign "+Arrays.asList(argv).toString().replaceAll("[\\[\\],]"," ").trim());
-			CoNLLAlign.main(argv); // align
-			
-			System.setOut(out);
-			String[] m = merged.toString().split("\n");
-			
-			// find last aligned row
+			}
+
+			if(DEBUG) System.err.println("CoNLLAlign "+buffer1.size()+" x "+buffer2.size()+" lines");
+			long start = System.currentTimeMillis();
+			Alignment m = align(buffer1, buffer2);
+			long millis = System.currentTimeMillis()-start;
+
+			// find last link of a FILE1 and a FILE2 token, in the last window, this is the last link
 			int lastAligned = -1;
-			for(int i = 0; i<m.length; i++) {
-				String[] fields = m[i].split("\t");
-				if(fields.length>=buffer1Width && 
-				   !Arrays.asList(Arrays.copyOfRange(fields,buffer1Width,fields.length)).toString().replaceAll("\\*[^,\\]]*","").matches("^\\[[\\?, \"]+\\]$") &&
-				   !Arrays.asList(Arrays.copyOfRange(fields,0,buffer1Width)).toString().replaceAll("\\*[^,\\]]*","").matches("^\\[[\\?, \"]+\\]$"))
-				   lastAligned=i;
-			}			
+			int alignedRows = 0;
+			int rows = 0;
+			if(tail || eof1 && eof2) {
+				lastAligned = m.size()-1;
+			} else
+				for(int i = 0; i<m.size(); i++) {
+					Alignment.Link link = m.get(i);
+					boolean token1 = link.left>=0 && buffer1.isContent(link.left);
+					boolean token2 = link.right>=0 && buffer2.isContent(link.right);
+					if(token1 || token2) rows++;
+					if(token1 && token2) {
+					   lastAligned=i;
+					   alignedRows++;
+					}
+				}
 			
 			if(lastAligned<0 && buffer1.size()>0 && buffer2.size()>0) {
 				window=window*2;
-				System.err.println("warning: did not find an alignment, doubling window to "+window+" lines");
+				System.err.println("warning: did not find an alignment, doubling window to "+window+" tokens");
 			}
 			
 			// write output until last aligned row
-			for(int i = 0; i<=lastAligned; i++)
-				System.out.println(m[i]);
+			List<String> aligned = lines(m, lastAligned+1, eof1 && eof2);
+			aligned.add("###################### end of alignment window #########");
 			
-			// @todo: row1 calculation seems to be ok, but row2 is too small
-			System.out.println("###################### end of alignment window #########");
-			
-			// find out the number of unaligned *content* rows on both sides
+			// remove written lines from buffers, i.e., up to the last FILE1 and FILE2 rows linked so far
+			// (rows after these are aligned again in the next window)
 			int rows1 = 0;
 			int rows2 = 0;
-			for(int i = lastAligned+1; i<m.length; i++) {
-				String[] fields = m[i].split("\t");
-				if(fields.length>=buffer1Width && !Arrays.asList(Arrays.copyOfRange(fields,buffer1Width,fields.length)).toString().replaceAll("\\*[^,\\]]*","").matches("^\\[[\\?, \"]+\\]$")) rows2++;
-				if(fields.length>=buffer1Width && !Arrays.asList(Arrays.copyOfRange(fields,0,buffer1Width)).toString().replaceAll("\\*[^,\\]]*","").matches("^\\[[\\?, \"]+\\]$")) rows1++;
+			for(int i = 0; i<=lastAligned; i++) {
+				if(m.get(i).left>=0) rows1 = m.get(i).left+1;
+				if(m.get(i).right>=0) rows2 = m.get(i).right+1;
+			}
+			if(tail || eof1 && eof2) {
+				rows1 = buffer1.size();
+				rows2 = buffer2.size();
 			}
+			buffer1.removeFirst(rows1);
+			buffer2.removeFirst(rows2);
+			if(lastAligned>=0 && !tail && !(eof1 && eof2))
+				window = adapt(alignedRows/(double)rows, millis);
+
+			// checkpoint after the output of this window is written
+			if(checkpoint!=null && !(eof1 && eof2) && checkpoint.due())
+				out.put(aligned, checkpoint.state(window, buffer1, eof1, buffer2, eof2));
+			else
+				out.put(aligned, null);
 			
-			// remove alined lines from buffers
-			lastAligned = buffer1.size();
-			while(rows1>0) {
-				lastAligned--;
-				if(!buffer1.get(lastAligned).replaceFirst("#.*","").trim().equals("")) rows1--;
+			// fill buffers
+			eof1 = eof1 || !fill(buffer1, file1);
+			eof2 = eof2 || !fill(buffer2, file2);
+		}
+		out.finish();
+	}
+
+	/** size of the next window, given the alignment density of the last window (share of token rows that align a FILE1 and a
+	 * FILE2 token) and the time it took: windows that aligned well shrink (down to minWindow), windows with many mismatches grow,
+	 * and if there is a latency target, windows shrink or do not grow if the next window would exceed it
+	 * (assuming that alignment time is at least linear in the window size) */
+	protected int adapt(double density, long millis) {
+		double factor = 1;
+		if(density>=0.8)
+			factor = 0.5;
+		else if(density<0.5)
+			factor = 2;
+		if(latency>0 && factor*millis>latency)
+			factor = Math.min(factor, latency/(double)millis);
+		if(DEBUG) System.err.println("window "+window+" tokens, "+millis+" ms, density "+density+", next x "+factor);
+		return (int)Math.max(minWindow, Math.min(Integer.MAX_VALUE/2, window*factor));
+	}
+
+	/** read lines into buffer until it holds window content rows and ends with a sentence (or holds twice as many content rows),
+	 * drop comments unless keepComments, false at the end of input */
+	protected boolean fill(Window buffer, Prefetch in) throws IOException {
+		while(buffer.tokens<window || (buffer.tokens<2*window && !buffer.endsSentence())) {
+			Line line = in.next();
+			if(line==null) return false;
+			add(buffer, line);
+		}
+		return true;
+	}
+
+	protected void add(Window buffer, Line line) {
+		buffer.end=line.end;
+		if(keepComments || !line.comment) // comments interfere with alignment
+			buffer.add(line);
+	}
+
+	/** re-read the lines of a window from a checkpoint (start<i>i</i> to end<i>i</i>), returns eof<i>i</i> */
+	protected boolean restore(Window buffer, Prefetch in, Properties state, String i) throws IOException {
+		buffer.end = Long.parseLong(state.getProperty("start"+i));
+		buffer.width = Integer.parseInt(state.getProperty("width"+i, "0"));
+		long end = Long.parseLong(state.getProperty("end"+i));
+		while(buffer.end<end) {
+			Line line = in.next();
+			if(line==null) throw new IOException("input ends before offset "+end+" of the checkpoint");
+			add(buffer, line);
+		}
+		return Boolean.parseBoolean(state.getProperty("eof"+i));
+	}
+
+	/** align two windows in memory, links refer to lines of the windows */
+	protected Alignment align(Window lines1, Window lines2) throws IOException {
+		return options.align(lines1.table(), lines2.table(), engine);
+	}
+
+	/** output lines of the first links of the alignment (pruned with -f), at the end of input without trailing empty lines (one
+	 * empty line if there is no output) */
+	protected List<String> lines(Alignment alignment, int links, boolean eof) throws IOException {
+		final List<String> result = new ArrayList<String>();
+		LineWriter out = new LineWriter() {
+			public void line(String line) {
+				result.add(line);
 			}
-			while(lastAligned>0 && buffer1.size()>0) {
-				buffer1.remove(0);
-				lastAligned--;
+		};
+		alignment.write(out, 0, links, options.force);
+		out.close();
+		if(eof) {
+			while(result.size()>0 && result.get(result.size()-1).equals(""))
+				result.remove(result.size()-1);
+			if(result.isEmpty())		// as String.split("\n") of the output
+				result.add("");
+		}
+		return result;
+	}
+
+	/** a line as read, with its cells (cf. CoNLLTable.split()) */
+	protected static class Line {
+		protected final String line;
+		protected final String[] cells;
+
+		/** anything but whitespace before # */
+		protected final boolean content;
+		protected final boolean comment;
+
+		/** sentence boundary */
+		protected final boolean empty;
+
+		/** byte offsets of the line and after its line break, -1 if unknown */
+		protected final long offset;
+		protected final long end;
+
+		protected Line(String line) {
+			this(line, -1, -1);
+		}
+
+		protected Line(String line, long offset, long end) {
+			this.line=line;
+			this.offset=offset;
+			this.end=end;
+			this.cells=CoNLLTable.split(line);
+			this.content=isContent(line);
+			this.comment=line.trim().startsWith("#");
+			this.empty=line.trim().equals("");
+		}
+
+		/** <code>!line.replaceFirst("#.*","").trim().equals("")</code> */
+		protected static boolean isContent(String line) {
+			int i = 0;
+			for(; i<line.length() && line.charAt(i)!='#'; i++)
+				if(line.charAt(i)>' ') return true;
+			for(; i<line.length(); i++)		// . does not match line terminators
+				if(line.charAt(i)=='\n' || line.charAt(i)=='\r' || line.charAt(i)=='\u0085' || line.charAt(i)=='\u2028' || line.charAt(i)=='\u2029')
+					return true;
+			return false;
+		}
+	}
+
+	/** reader stage: reads and splits the lines of a file on its own thread, hands them over in blocks through a bounded queue */
+	protected static class Prefetch implements Callable<Void> {
+		protected final CoNLLReader in;
+		protected final BlockingQueue<List<Line>> queue = new ArrayBlockingQueue<List<Line>>(READ_AHEAD);
+		protected Future<Void> task;
+
+		/** block being consumed, an empty block marks the end of input */
+		protected List<Line> block = new ArrayList<Line>(0);
+		protected int next = 0;
+		protected boolean eof = false;
+
+		protected Prefetch(CoNLLReader in) {
+			this.in=in;
+		}
+
+		public Void call() throws IOException, InterruptedException {
+			try {
+				List<Line> block = new ArrayList<Line>(BLOCK);
+				for(String line = in.readLine(); line!=null; line=in.readLine()) {
+					block.add(new Line(line, in.offset(), in.nextOffset()));
+					if(block.size()==BLOCK) {
+						queue.put(block);
+						block = new ArrayList<Line>(BLOCK);
+					}
+				}
+				if(block.size()>0)
+					queue.put(block);
+			} finally {
+				queue.put(new ArrayList<Line>(0));
 			}
-			lastAligned =  buffer2.size();
-			while(rows2>0) {
-				lastAligned--;
-				if(!buffer2.get(lastAligned).replaceFirst("#.*","").trim().equals("")) rows2--;
+			return null;
+		}
+
+		/** next line, null at the end of input, passes on errors of the reader thread */
+		public Line next() throws IOException {
+			return hasNext() ? block.get(next++) : null;
+		}
+
+		/** false at the end of input, waits for the next block if necessary */
+		public boolean hasNext() throws IOException {
+			if(next==block.size()) {
+				if(eof) return false;
+				try {
+					block = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				next = 0;
+				if(block.isEmpty()) {
+					eof = true;
+					CoNLLAlign.get(task);
+					return false;
+				}
 			}
-			while(lastAligned>0 &&  buffer2.size()>0) {
-				 buffer2.remove(0);
-				lastAligned--;
+			return true;
+		}
+	}
+
+	/** output of a window, with the checkpoint to save after it was written (or null) */
+	protected static class Chunk {
+		protected final List<String> lines;
+		protected final Properties state;
+
+		protected Chunk(List<String> lines, Properties state) {
+			this.lines=lines;
+			this.state=state;
+		}
+	}
+
+	/** writer stage: writes the output of aligned windows on its own thread, takes them from a bounded queue */
+	protected static class Drain implements Callable<Void> {
+		protected final Writer writer;
+		protected final Checkpoint checkpoint;
+		protected final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(WRITE_BEHIND);
+		protected Future<Void> task;
+
+		protected Drain(Writer writer) {
+			this(writer, null);
+		}
+
+		/** @param checkpoint where to save the checkpoints of windows, null for none */
+		protected Drain(Writer writer, Checkpoint checkpoint) {
+			this.writer=writer;
+			this.checkpoint=checkpoint;
+		}
+
+		public Void call() throws InterruptedException, IOException {
+			PrintWriter out = new PrintWriter(writer);
+			for(Chunk chunk = queue.take(); !chunk.lines.isEmpty(); chunk = queue.take()) {
+				for(String line : chunk.lines)
+					out.println(line);
+				if(chunk.state!=null) {
+					out.flush();
+					checkpoint.save(chunk.state);
+				}
 			}
-			
-			// fill buffers
+			out.flush();
+			return null;
+		}
+
+		/** queue non-empty lines for output, blocks while the writer is behind */
+		public void put(List<String> lines) throws IOException {
+			put(lines, null);
+		}
+
+		/** queue non-empty lines for output and save state as checkpoint after they were written, if not null */
+		public void put(List<String> lines, Properties state) throws IOException {
+			Chunk chunk = new Chunk(lines, state);
 			try {
-				while(buffer1.size()<window) {
-					buffer1.add(file1.readLine());
-					buffer1Width=Math.max(buffer1Width,buffer1.get(buffer1.size()-1).split("\t").length);
-					if(!keepComments && buffer1.get(buffer1.size()-1).trim().startsWith("#")) buffer1.remove(buffer1.size()-1); // comments interfere with alignment
-				}
-			} catch (IOException e) {}
-			
+				while(!queue.offer(chunk, 100, TimeUnit.MILLISECONDS))
+					if(task.isDone()) CoNLLAlign.get(task);		// passes on its error
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		/** write the remaining output and wait for the writer */
+		public void finish() throws IOException {
+			put(new ArrayList<String>(0));
+			CoNLLAlign.get(task);
+		}
+	}
+
+	/** checkpoint of a merge into a file: input offsets, adapted window size and output offset after a window. Input offsets are
+	 * the byte offset of the first line kept for the next window and the offset after the last line read, the lines in between
+	 * are read again to restore the window. Saved only after the output is on disk, by replacing the checkpoint file */
+	protected static class Checkpoint {
+		protected final File file;
+
+		/** minimum time between checkpoints in ms */
+		protected final long interval;
+		protected long saved;
+
+		/** output file, absolute paths of the input files */
+		protected FileChannel output;
+		protected String[] paths;
+
+		protected Checkpoint(File file, long interval) {
+			this.file=file;
+			this.interval=interval;
+			this.saved=System.currentTimeMillis();
+		}
+
+		/** true if the next checkpoint is due (and it will be saved) */
+		protected boolean due() {
+			if(System.currentTimeMillis()-saved<interval) return false;
+			saved=System.currentTimeMillis();
+			return true;
+		}
+
+		/** state after a window, i.e., after written lines were removed from the buffers */
+		protected Properties state(int window, Window buffer1, boolean eof1, Window buffer2, boolean eof2) {
+			Properties state = new Properties();
+			state.setProperty("file1", paths[0]);
+			state.setProperty("file2", paths[1]);
+			state.setProperty("window", ""+window);
+			Window[] buffers = { buffer1, buffer2 };
+			boolean[] eof = { eof1, eof2 };
+			for(int i = 0; i<2; i++) {
+				state.setProperty("start"+(i+1), ""+buffers[i].start());
+				state.setProperty("end"+(i+1), ""+buffers[i].end);
+				state.setProperty("eof"+(i+1), ""+eof[i]);
+				state.setProperty("width"+(i+1), ""+buffers[i].width);
+			}
+			return state;
+		}
+
+		/** force the output written so far to disk, then save state with its length */
+		protected void save(Properties state) throws IOException {
+			output.force(false);
+			state.setProperty("output", ""+output.size());
+			File tmp = new File(file.getPath()+".tmp");
+			OutputStream out = new FileOutputStream(tmp);
 			try {
-				while(buffer2.size()<window) {
-					buffer2.add(file2.readLine());
-					buffer2Width=Math.max(buffer2Width,buffer2.get(buffer2.size()-1).split("\t").length);
-					if(!keepComments && buffer2.get(buffer2.size()-1).trim().startsWith("#")) buffer2.remove(buffer2.size()-1); // comments interfere with alignment
-				}
-			} catch (IOException e) {}
-
-		}
-		
-		// write unaligned tail
-		while(buffer1!=null && buffer1.size()>0) {
-			System.out.print(buffer1.get(0));
-			if(!buffer1.get(0).replaceFirst("#.*","").trim().equals(""))
-				for(int i = 0; i<buffer2Width-dropCols.size(); i++)
-					System.out.print("\t?");
-			System.out.println();
-			buffer1.remove(0);
-		}
-		
-		while(buffer2!=null && buffer2.size()>0) {
-			if(!buffer2.get(0).replaceFirst("#.*","").trim().equals("")) {
-				for(int i = 0; i<buffer1Width; i++)
-					System.out.print("?\t");
-				String[] fields = buffer2.get(0).split("\t");
-				for(int i = 0; i<fields.length; i++) 
-					if(!dropCols.contains(i)) {
-						System.out.print(fields[i]);
-						if(i<fields.length-1)
-							System.out.print("\t");
-					}
-			} else
-				System.out.print(buffer2.get(0));
-			System.out.println();
-			buffer2.remove(0);
+				state.store(out, "CoNLLStreamMerger checkpoint");
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		/** the last checkpoint, null if there is none */
+		protected Properties load() throws IOException {
+			if(!file.exists()) return null;
+			Properties state = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				state.load(in);
+			} finally {
+				in.close();
+			}
+			return state;
+		}
+	}
+
+	/** growable ring buffer over the lines of an alignment window, consumed lines are dropped from the head in constant time */
+	protected static class Window {
+		protected Line[] lines = new Line[1024];
+
+		/** position of the first line, capacity is a power of 2 */
+		protected int head = 0;
+		protected int size = 0;
+
+		/** number of content rows */
+		protected int tokens = 0;
+
+		/** byte offset after the last line read, including dropped ones */
+		protected long end = 0;
+
+		/** maximum number of cells of all lines added, including consumed ones */
+		protected int width = 0;
+
+		public void add(Line line) {
+			if(size==lines.length) grow();
+			width = Math.max(width, line.cells.length);
+			lines[(head+size) & (lines.length-1)]=line;
+			if(line.content) tokens++;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public Line get(int i) {
+			return lines[(head+i) & (lines.length-1)];
+		}
+
+		public boolean isContent(int i) {
+			return get(i).content;
+		}
+
+		/** true if the last line is empty */
+		public boolean endsSentence() {
+			return size>0 && get(size-1).empty;
+		}
+
+		/** drop the first n lines */
+		public void removeFirst(int n) {
+			for(int r = 0; r<n; r++) {
+				int i = (head+r) & (lines.length-1);
+				if(lines[i].content) tokens--;
+				lines[i]=null;
+			}
+			head = (head+n) & (lines.length-1);
+			size-=n;
+		}
+
+		public void clear() {
+			removeFirst(size);
+		}
+
+		/** byte offset of the first line, i.e., where to continue reading if the window was lost */
+		public long start() {
+			return size>0 ? get(0).offset : end;
+		}
+
+		/** the current lines as a table, from the pre-split cells, with the columns of all lines added so far (so that rows
+		 * without a match are filled up to the same width in every window) */
+		public CoNLLTable table() {
+			CoNLLTable result = new CoNLLTable();
+			for(int r = 0; r<size; r++)
+				result.add(get(r).cells);
+			while(result.width()<width)
+				result.addColumn();
+			return result;
+		}
+
+		protected void grow() {
+			Line[] lines = new Line[2*this.lines.length];
+			for(int r = 0; r<size; r++)
+				lines[r]=get(r);
+			this.lines=lines;
+			head=0;
+		}
+	}
+
+	public static void main(String[] argv) throws Exception {
+
+		int window = 10000;
+		long latency = 0;
+		boolean keepComments=false;
+		File output = null;
+		long interval = 60;
+		boolean resume = false;
+		if(!Arrays.asList(argv).toString().toLowerCase().matches(".*[\\[,] *-silent[,\\]].*"))
+			System.err.println("synopsis: CoNLLStreamMerger FILE1.tsv FILE2.tsv ALIGN_ARGS [-window=INT] [-latency=MS] [-keep-comments] [-output=FILE [-checkpoint=SEC] [-resume]]\n"+
+				"\tFILEi.tsv      tab-separated text files, e.g. CoNLL format\n"+
+				"\tALIGN_ARGS     other arguments passed on to CoNLLAlign, see there\n"+
+				"\t-window=INT    initial number of tokens (non-empty lines) of the alignment window, by default "+window+", larger windows increase runtime and quality\n"+
+				"\t               windows end at sentence boundaries (empty lines) if possible, after every window, the size is adapted:\n"+
+				"\t               it grows if most of the window was left unaligned, and shrinks (down to 1/4) if it aligned well\n"+
+				"\t-latency=MS    target time per window, windows shrink if aligning them takes longer\n"+
+				"\t-keep-comments skipping comments facilitates alignment and is thus default, use this to keep comments\n"+
+				"\t-output=FILE   write to FILE rather than stdout, and save a checkpoint to FILE.checkpoint after a window\n"+
+				"\t-checkpoint=SEC at most every SEC seconds, by default "+interval+"\n"+
+				"\t-resume        continue an interrupted merge from FILE.checkpoint (if it exists), with the same arguments otherwise\n"+
+				"break argument files into segments, and apply CoNLLAlign iteratively");
+
+		List<String> args = new ArrayList<String>();
+		for(String arg : argv) {
+			if(arg.toLowerCase().equals("-keep-comments"))
+				keepComments=true;
+			else if(arg.toLowerCase().startsWith("-window="))
+				window=Integer.parseInt(arg.replaceFirst("^.*=",""));
+			else if(arg.toLowerCase().startsWith("-latency="))
+				latency=Long.parseLong(arg.replaceFirst("^.*=",""));
+			else if(arg.toLowerCase().startsWith("-output="))
+				output=new File(arg.replaceFirst("^[^=]*=",""));
+			else if(arg.toLowerCase().startsWith("-checkpoint="))
+				interval=Long.parseLong(arg.replaceFirst("^.*=",""));
+			else if(arg.toLowerCase().equals("-resume"))
+				resume=true;
+			else
+				args.add(arg);
+		}
+		argv=args.toArray(new String[args.size()]);
+
+		CoNLLStreamMerger merger = new CoNLLStreamMerger(CoNLLAlign.Options.parse(argv, 2), window, keepComments, latency);
+		if(output!=null) {
+			merger.merge(new File(argv[0]), new File(argv[1]), output, interval*1000, resume);
+			return;
 		}
-		
+		CoNLLReader file1 = new CoNLLReader(new File(argv[0]));
+		CoNLLReader file2 = new CoNLLReader(new File(argv[1]));
+		merger.merge(file1, file2, new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
 		file1.close();
 		file2.close();
 	}
-}
\ No newline at end of file
+}
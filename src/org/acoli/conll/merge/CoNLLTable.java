@@ -0,0 +1,265 @@
+package org.acoli.conll.merge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/** columnar, dictionary-encoded storage for the rows of a CoNLL file<br/>
+ * every column keeps its own dictionary of cell values, rows are stored as int ids per column,
+ * so that frequent values (POS tags, IOBES labels, *, _, etc.) are held only once<br/>
+ * rows are materialized on access (<code>get(row)</code> returns a fresh String[] over the shared dictionary entries),
+ * modifications of these arrays do not write back into the table<br/>
+ * comments are stored as one-column rows, empty lines as rows with one empty cell, cf. CoNLLAlign.readCoNLL() */
+public class CoNLLTable extends AbstractList<String[]> {
+
+	/** number of rows */
+	protected int size = 0;
+
+	/** number of cells per row */
+	protected int[] lengths = new int[1024];
+
+	/** cell ids, indexed by column, then row, only valid for row<size and col<lengths[row] */
+	protected int[][] cols = new int[0][];
+
+	/** one dictionary per column */
+	protected Dictionary[] dicts = new Dictionary[0];
+
+	/** append a row */
+	public boolean add(String[] row) {
+		if(size==lengths.length) grow();
+		while(row.length>cols.length) addColumn();
+		for(int c = 0; c<row.length; c++)
+			cols[c][size]=dicts[c].intern(row[c]);
+		lengths[size++]=row.length;
+		modCount++;
+		return true;
+	}
+
+	/** append the current line of a CoNLLReader, cells are interned from the raw bytes, without building Strings */
+	public boolean add(CoNLLReader in) {
+		int n = in.cells();
+		if(in.cells<0) return add(in.row());
+		if(size==lengths.length) grow();
+		while(n>cols.length) addColumn();
+		for(int c = 0; c<n; c++)
+			cols[c][size]=dicts[c].intern(in.buf, in.bounds[2*c], in.bounds[2*c+1]);
+		lengths[size++]=n;
+		modCount++;
+		return true;
+	}
+
+	/** writer that appends its input to this table, lines are split as by CoNLLReader.row(), e.g., to keep merged output in memory */
+	public LineWriter writer() {
+		return new LineWriter() {
+			public void line(String line) {
+				add(split(line));
+			}
+		};
+	}
+
+	/** split a line according to CoNLLAlign.readCoNLL(), without regex unless it ends with a unicode line break, cf. CoNLLReader */
+	public static String[] split(String line) {
+		if(line.trim().startsWith("#"))
+			return new String[] { line };
+		int end = line.length();
+		if(end>0 && (line.charAt(end-1)=='\u0085' || line.charAt(end-1)=='\u2028' || line.charAt(end-1)=='\u2029'))
+			return line.replaceAll("[\t ]*$","").split(" *\t+ *");
+		while(end>0 && (line.charAt(end-1)=='\t' || line.charAt(end-1)==' ')) end--;
+		return CoNLLAlign.splitCells(line.substring(0, end));
+	}
+
+	/** materialize a row */
+	public String[] get(int row) {
+		if(row>=size) throw new IndexOutOfBoundsException(row+">="+size);
+		String[] result = new String[lengths[row]];
+		for(int c = 0; c<result.length; c++)
+			result[c]=dicts[c].get(cols[c][row]);
+		return result;
+	}
+
+	/** single cell, null if the row has no such column */
+	public String get(int row, int col) {
+		if(row>=size) throw new IndexOutOfBoundsException(row+">="+size);
+		if(col>=lengths[row]) return null;
+		return dicts[col].get(cols[col][row]);
+	}
+
+	/** number of cells in the row */
+	public int length(int row) {
+		return lengths[row];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** number of columns, i.e., cells of the longest row */
+	public int width() {
+		return cols.length;
+	}
+
+	/** read-only view on a column, rows without this column yield "" (cf. CoNLLAlign.getCol()) */
+	public Column column(int col) {
+		return new Column(col);
+	}
+
+	/** read-only view on a column, rows without this column yield "" */
+	public class Column extends AbstractList<String> {
+
+		protected final int col;
+
+		protected Column(int col) {
+			this.col=col;
+		}
+
+		public String get(int row) {
+			String result = CoNLLTable.this.get(row,col);
+			if(result==null) return "";
+			return result;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/** dictionary ids of this and the other column, mapped to a shared id space (equal values share an id),
+		 * looks up every distinct value only once and does not build Strings */
+		public int[][] encode(Column other) {
+			CoNLLTable that = other.table();
+			Dictionary dict = (col<dicts.length ? dicts[col] : new Dictionary());
+			Dictionary otherDict = (other.col<that.dicts.length ? that.dicts[other.col] : new Dictionary());
+			int next = dict.size();
+			int empty = dict.find(new byte[0], 0, 0);	// missing cells read as ""
+			if(empty<0) empty=next++;
+			int[] map = new int[otherDict.size()];
+			for(int id = 0; id<map.length; id++) {
+				int from = otherDict.offsets[id];
+				int to = otherDict.offsets[id+1];
+				map[id]=dict.find(otherDict.bytes, from, to);
+				if(map[id]<0) map[id] = (from==to ? empty : next++);
+			}
+			int[] ids = new int[size];
+			for(int row = 0; row<ids.length; row++)
+				ids[row] = (col<lengths[row] ? cols[col][row] : empty);
+			int[] otherIds = new int[that.size];
+			for(int row = 0; row<otherIds.length; row++)
+				otherIds[row] = (other.col<that.lengths[row] ? map[that.cols[other.col][row]] : empty);
+			return new int[][] { ids, otherIds };
+		}
+
+		protected CoNLLTable table() {
+			return CoNLLTable.this;
+		}
+	}
+
+	protected void grow() {
+		lengths = Arrays.copyOf(lengths, lengths.length*2);
+		for(int c = 0; c<cols.length; c++)
+			cols[c] = Arrays.copyOf(cols[c], lengths.length);
+	}
+
+	protected void addColumn() {
+		cols = Arrays.copyOf(cols, cols.length+1);
+		cols[cols.length-1] = new int[lengths.length];
+		dicts = Arrays.copyOf(dicts, dicts.length+1);
+		dicts[dicts.length-1] = new Dictionary();
+	}
+
+	/** dictionary with open addressing, maps values to consecutive int ids (no boxing, no entry objects)<br/>
+	 * values are kept as UTF-8 bytes, Strings are built on first access */
+	protected static class Dictionary {
+
+		/** value i is bytes[offsets[i]..offsets[i+1]] */
+		protected byte[] bytes = new byte[1024];
+		protected int[] offsets = new int[65];
+		protected int[] hashes = new int[64];
+		protected String[] strings = new String[64];
+		protected int size = 0;
+
+		/** hash table over value ids+1, 0 marks a free slot, size is a power of 2 */
+		protected int[] table = new int[128];
+
+		public int intern(String value) {
+			byte[] b = value.getBytes(StandardCharsets.UTF_8);
+			int id = intern(b, 0, b.length);
+			if(strings[id]==null) strings[id]=value;
+			return id;
+		}
+
+		/** id of the value in b[from..to], -1 if not in the dictionary */
+		public int find(byte[] b, int from, int to) {
+			int hash = hash(b, from, to);
+			int mask = table.length-1;
+			int slot = hash & mask;
+			while(table[slot]!=0) {
+				int id = table[slot]-1;
+				if(hashes[id]==hash && equals(id, b, from, to)) return id;
+				slot = (slot+1) & mask;
+			}
+			return -1;
+		}
+
+		public int intern(byte[] b, int from, int to) {
+			int hash = hash(b, from, to);
+			int mask = table.length-1;
+			int slot = hash & mask;
+			while(table[slot]!=0) {
+				int id = table[slot]-1;
+				if(hashes[id]==hash && equals(id, b, from, to)) return id;
+				slot = (slot+1) & mask;
+			}
+			if(size==hashes.length) {
+				hashes = Arrays.copyOf(hashes, size*2);
+				strings = Arrays.copyOf(strings, size*2);
+				offsets = Arrays.copyOf(offsets, size*2+1);
+			}
+			int start = offsets[size];
+			if(start+to-from>bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(2*bytes.length, start+to-from));
+			System.arraycopy(b, from, bytes, start, to-from);
+			offsets[size+1]=start+to-from;
+			hashes[size]=hash;
+			table[slot]=++size;
+			if(2*size>table.length) rehash();
+			return size-1;
+		}
+
+		public String get(int id) {
+			String result = strings[id];
+			if(result==null) {
+				result = new String(bytes, offsets[id], offsets[id+1]-offsets[id], StandardCharsets.UTF_8);
+				strings[id]=result;
+			}
+			return result;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		protected boolean equals(int id, byte[] b, int from, int to) {
+			int start = offsets[id];
+			if(offsets[id+1]-start!=to-from) return false;
+			for(int i = from; i<to; i++)
+				if(bytes[start++]!=b[i]) return false;
+			return true;
+		}
+
+		protected static int hash(byte[] b, int from, int to) {
+			int h = 0;
+			for(int i = from; i<to; i++)
+				h = 31*h + b[i];
+			return h ^ (h>>>16);
+		}
+
+		protected void rehash() {
+			table = new int[table.length*2];
+			int mask = table.length-1;
+			for(int id = 0; id<size; id++) {
+				int slot = hashes[id] & mask;
+				while(table[slot]!=0) slot = (slot+1) & mask;
+				table[slot]=id+1;
+			}
+		}
+	}
+}
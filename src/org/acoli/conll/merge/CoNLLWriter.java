@@ -0,0 +1,114 @@
+package org.acoli.conll.merge;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** buffered output for CoNLL files<br/>
+ * characters are collected in a large buffer and passed on in blocks. Besides explicit calls of flush(),
+ * the underlying writer is flushed according to the policy: at the end only (END), after every sentence,
+ * i.e., empty line (SENTENCE), or whenever at least policy characters have been written since the last flush. */
+public class CoNLLWriter extends Writer {
+
+	public static final int END = -1;
+	public static final int SENTENCE = 0;
+
+	protected final Writer out;
+	protected final int policy;
+
+	protected final char[] buf;
+	protected int size = 0;
+
+	/** characters written since the last flush */
+	protected long unflushed = 0;
+
+	/** last character written, to detect empty lines */
+	protected char last = '\n';
+
+	public CoNLLWriter(Writer out) {
+		this(out, END);
+	}
+
+	public CoNLLWriter(Writer out, int policy) {
+		this(out, policy, 1<<16);
+	}
+
+	public CoNLLWriter(Writer out, int policy, int bufferSize) {
+		this.out=out;
+		this.policy=policy;
+		this.buf=new char[bufferSize];
+	}
+
+	/** end, sentence or a number of characters */
+	public static int parsePolicy(String policy) {
+		if(policy.equalsIgnoreCase("end")) return END;
+		if(policy.equalsIgnoreCase("sentence")) return SENTENCE;
+		int result = Integer.parseInt(policy);
+		if(result<=0) throw new IllegalArgumentException("flush policy must be end, sentence or a positive number, found "+policy);
+		return result;
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if(policy==SENTENCE) {
+			int from = off;
+			for(int i = off; i<off+len; i++) {
+				if(cbuf[i]=='\n' && (i>off ? cbuf[i-1] : last)=='\n') {
+					append(cbuf, from, i+1-from);
+					from = i+1;
+					flush();
+				}
+			}
+			append(cbuf, from, off+len-from);
+		} else {
+			append(cbuf, off, len);
+			if(policy>0 && unflushed>=policy)
+				flush();
+		}
+		if(len>0) last = cbuf[off+len-1];
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		if(policy==SENTENCE || len>buf.length-size || len==0) {
+			super.write(str, off, len);
+			return;
+		}
+		str.getChars(off, off+len, buf, size);	// directly into the buffer
+		size+=len;
+		unflushed+=len;
+		last = str.charAt(off+len-1);
+		if(policy>0 && unflushed>=policy)
+			flush();
+	}
+
+	protected void append(char[] cbuf, int off, int len) throws IOException {
+		if(len>buf.length-size) {
+			drain();
+			if(len>=buf.length) {
+				out.write(cbuf, off, len);
+				unflushed+=len;
+				return;
+			}
+		}
+		System.arraycopy(cbuf, off, buf, size, len);
+		size+=len;
+		unflushed+=len;
+	}
+
+	/** pass the buffer on, without flushing */
+	protected void drain() throws IOException {
+		if(size>0) {
+			out.write(buf, 0, size);
+			size=0;
+		}
+	}
+
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+		unflushed=0;
+	}
+
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+}
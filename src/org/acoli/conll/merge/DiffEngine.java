@@ -0,0 +1,32 @@
+package org.acoli.conll.merge;
+
+import java.util.List;
+
+import difflib.Delta;
+import difflib.DiffAlgorithm;
+
+/** alignment engine for CoNLLAlign: finds the deltas between two FORM columns<br/>
+ * deltas must be ordered by position and must not overlap, consecutive deltas must be separated by at least one
+ * matching token, i.e., as returned by <code>DiffUtils.diff(original, revised).getDeltas()</code>.<br/>
+ * Implementations are selected with the -engine flag of CoNLLAlign.main(), either by name (cf. CoNLLAlign.getEngine())
+ * or by class name. External classes need a public no-argument constructor and may implement either this interface
+ * or difflib.DiffAlgorithm. */
+public interface DiffEngine {
+
+	/** returns the deltas between original and revised, ordered by position */
+	public List<Delta> diff(List<String> original, List<String> revised);
+
+	/** wraps a difflib.DiffAlgorithm, e.g., the original difflib.myers.MyersDiff */
+	public static class Adapter implements DiffEngine {
+
+		protected final DiffAlgorithm algorithm;
+
+		public Adapter(DiffAlgorithm algorithm) {
+			this.algorithm=algorithm;
+		}
+
+		public List<Delta> diff(List<String> original, List<String> revised) {
+			return algorithm.diff(original, revised).getDeltas();
+		}
+	}
+}
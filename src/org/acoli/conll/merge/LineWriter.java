@@ -0,0 +1,43 @@
+package org.acoli.conll.merge;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** writer that passes its input on line by line, without the line break<br/>
+ * line breaks follow BufferedReader.readLine() (\n, \r or \r\n), an unterminated last line is passed on by close() */
+public abstract class LineWriter extends Writer {
+
+	/** current input line, up to the next line break */
+	protected final StringBuilder line = new StringBuilder();
+	protected boolean afterCR = false;
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		for(int i = off; i<off+len; i++) {
+			char c = cbuf[i];
+			if(c=='\n' && afterCR) {
+				afterCR=false;
+			} else if(c=='\n' || c=='\r') {
+				afterCR = (c=='\r');
+				line(line.toString());
+				line.setLength(0);
+			} else {
+				afterCR=false;
+				line.append(c);
+			}
+		}
+	}
+
+	/** process a complete line */
+	public abstract void line(String line) throws IOException;
+
+	public void flush() throws IOException {
+	}
+
+	/** pass on the last line, if unterminated */
+	public void close() throws IOException {
+		if(line.length()>0) {
+			line(line.toString());
+			line.setLength(0);
+		}
+	}
+}
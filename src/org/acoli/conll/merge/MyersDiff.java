@@ -0,0 +1,335 @@
+package org.acoli.conll.merge;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import difflib.ChangeDelta;
+import difflib.Chunk;
+import difflib.DeleteDelta;
+import difflib.Delta;
+import difflib.InsertDelta;
+
+/** Myers' O(ND) diff over int ids, replaces DiffUtils.diff() for CoNLLAlign<br/>
+ * both sequences are mapped to shared int ids, the greedy search for the furthest reaching D-paths runs over int[]
+ * and keeps its trace in a flat int[] (no PathNode objects per step).<br/>
+ * Tie-breaking follows difflib.myers.MyersDiff (java-diff-utils 1.2.1), so that the result is identical to
+ * <code>DiffUtils.diff(original, revised).getDeltas()</code>.<br/>
+ * The trace grows quadratically with the edit distance. If it would exceed the memory budget, we switch to the
+ * linear-space variant (divide-and-conquer over middle snakes), which returns another shortest edit script, i.e.,
+ * the same number of inserted and deleted tokens, but possibly grouped into different deltas.
+ * Subproblems of the linear-space variant that fit into the budget are solved with the trace again.<br/>
+ *
+ * cf. Eugene W. Myers (1986). "An O(ND) Difference Algorithm and Its Variations". Algorithmica: November 1986
+ */
+public class MyersDiff implements DiffEngine {
+
+	/** maximum size of the trace in bytes */
+	protected final long budget;
+
+	/** trace-storing diff with a budget of a quarter of the maximum heap */
+	public MyersDiff() {
+		this(Runtime.getRuntime().maxMemory()/4);
+	}
+
+	/** @param budget maximum size of the trace in bytes, 0 to run linear-space only */
+	public MyersDiff(long budget) {
+		this.budget=budget;
+	}
+
+	/** returns the deltas between original and revised, ordered by position */
+	public List<Delta> diff(List<String> original, List<String> revised) {
+		int[][] ids = encode(original, revised);
+		Snakes snakes = new Snakes();
+		diff(ids[0], 0, ids[0].length, ids[1], 0, ids[1].length, snakes);
+		return snakes.toDeltas(original, revised);
+	}
+
+	/** returns the deltas between two int sequences, e.g., code points, chunks are (read-only) views on the arrays */
+	public List<Delta> diff(int[] original, int[] revised) {
+		Snakes snakes = new Snakes();
+		diff(original, 0, original.length, revised, 0, revised.length, snakes);
+		return snakes.toDeltas(asList(original), asList(revised));
+	}
+
+	/** read-only list view on an int[] */
+	protected static List<Integer> asList(final int[] values) {
+		return new AbstractList<Integer>() {
+			public Integer get(int i) {
+				return values[i];
+			}
+
+			public int size() {
+				return values.length;
+			}
+		};
+	}
+
+	/** map both sequences to shared int ids (equal strings share an id) */
+	public static int[][] encode(List<String> original, List<String> revised) {
+		if(original instanceof CoNLLTable.Column && revised instanceof CoNLLTable.Column)
+			return ((CoNLLTable.Column)original).encode((CoNLLTable.Column)revised);
+		HashMap<String,Integer> dict = new HashMap<String,Integer>();
+		int[][] result = new int[][] { new int[original.size()], new int[revised.size()] };
+		for(int i = 0; i<result[0].length; i++)
+			result[0][i]=id(dict, original.get(i));
+		for(int i = 0; i<result[1].length; i++)
+			result[1][i]=id(dict, revised.get(i));
+		return result;
+	}
+
+	private static int id(HashMap<String,Integer> dict, String value) {
+		Integer id = dict.get(value);
+		if(id==null) {
+			id=dict.size();
+			dict.put(value, id);
+		}
+		return id;
+	}
+
+	/** diff a[aFrom..aTo] against b[bFrom..bTo], append the matching runs to snakes (in absolute positions) */
+	protected void diff(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, Snakes snakes) {
+		if(!greedy(a, aFrom, aTo, b, bFrom, bTo, snakes))
+			linear(a, aFrom, aTo, b, bFrom, bTo, snakes);
+	}
+
+	/** greedy search with trace, false (and no snakes added) if the trace exceeds the budget */
+	protected boolean greedy(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, Snakes snakes) {
+		int n = aTo-aFrom;
+		int m = bTo-bFrom;
+		int max = n+m+1;
+		int middle = max;
+		long maxTrace = Math.min(Integer.MAX_VALUE-8, budget/4);
+		if(maxTrace<1) return false;
+		int[] v = new int[2*max+1];		// furthest reaching x per diagonal k, at v[middle+k]
+		int[] trace = new int[(int)Math.min(1024, maxTrace)];	// v of round d at trace[d*(d+1)/2 + (k+d)/2]
+		v[middle+1]=0;
+		for(int d = 0; d<max; d++) {
+			long offset = (long)d*(d+1)/2;
+			if(offset+d+1>maxTrace)
+				return false;
+			if(offset+d+1>trace.length)
+				trace = Arrays.copyOf(trace, (int)Math.min(maxTrace, Math.max(2L*trace.length, offset+d+1)));
+			for(int k = -d; k<=d; k+=2) {
+				int x;
+				if(k==-d || (k!=d && v[middle+k-1]<v[middle+k+1]))
+					x = v[middle+k+1];
+				else
+					x = v[middle+k-1]+1;
+				int y = x-k;
+				while(x<n && y<m && a[aFrom+x]==b[bFrom+y]) {
+					x++;
+					y++;
+				}
+				v[middle+k]=x;
+				trace[(int)offset+(k+d)/2]=x;
+				if(x>=n && y>=m) {
+					backtrack(trace, d, k, aFrom, bFrom, snakes);
+					return true;
+				}
+			}
+		}
+		throw new IllegalStateException("could not find a diff path");
+	}
+
+	/** linear-space diff: strip common prefix and suffix, split at the middle of a shortest path and recurse,
+	 * cf. Myers (1986), Sect. 4b, and N. Fraser, diff-match-patch, diff_bisect() */
+	protected void linear(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, Snakes snakes) {
+		int prefix = 0;
+		while(aFrom+prefix<aTo && bFrom+prefix<bTo && a[aFrom+prefix]==b[bFrom+prefix]) prefix++;
+		if(prefix>0) snakes.add(aFrom, bFrom, prefix);
+		aFrom+=prefix;
+		bFrom+=prefix;
+		int suffix = 0;
+		while(aTo-suffix>aFrom && bTo-suffix>bFrom && a[aTo-suffix-1]==b[bTo-suffix-1]) suffix++;
+		aTo-=suffix;
+		bTo-=suffix;
+		if(aFrom<aTo && bFrom<bTo) {
+			long size = aTo-aFrom+bTo-bFrom+1;
+			if(2*size*size>budget || !greedy(a, aFrom, aTo, b, bFrom, bTo, snakes)) {		// unless the worst case trace fits
+				long split = bisect(a, aFrom, aTo, b, bFrom, bTo);
+				if(split>=0) {
+					int x = (int)(split>>>32);
+					int y = (int)split;
+					linear(a, aFrom, aFrom+x, b, bFrom, bFrom+y, snakes);
+					linear(a, aFrom+x, aTo, b, bFrom+y, bTo, snakes);
+				}
+			}
+		}
+		if(suffix>0) snakes.add(aTo, bTo, suffix);
+	}
+
+	/** split point of a shortest path through a[aFrom..aTo] and b[bFrom..bTo], relative to aFrom and bFrom,
+	 * encoded as x&lt;&lt;32|y, -1 if there are no matches at all */
+	protected long bisect(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+		int n = aTo-aFrom;
+		int m = bTo-bFrom;
+		int maxD = (n+m+1)/2;
+		int vOffset = maxD;
+		int vLength = 2*maxD+2;
+		int[] v1 = new int[vLength];		// furthest reaching x per diagonal, forward and reverse (local, so that engines can be shared across threads)
+		int[] v2 = new int[vLength];
+		Arrays.fill(v1, -1);
+		Arrays.fill(v2, -1);
+		v1[vOffset+1]=0;
+		v2[vOffset+1]=0;
+		int delta = n-m;
+		boolean front = (delta%2!=0);	// if the total number of steps is odd, the forward path overlaps with the reverse path
+		int k1start = 0;
+		int k1end = 0;
+		int k2start = 0;
+		int k2end = 0;
+		for(int d = 0; d<maxD; d++) {
+			for(int k1 = -d+k1start; k1<=d-k1end; k1+=2) {	// forward
+				int k1Offset = vOffset+k1;
+				int x1;
+				if(k1==-d || (k1!=d && v1[k1Offset-1]<v1[k1Offset+1]))
+					x1 = v1[k1Offset+1];
+				else
+					x1 = v1[k1Offset-1]+1;
+				int y1 = x1-k1;
+				while(x1<n && y1<m && a[aFrom+x1]==b[bFrom+y1]) {
+					x1++;
+					y1++;
+				}
+				v1[k1Offset]=x1;
+				if(x1>n) {
+					k1end+=2;		// ran off the right
+				} else if(y1>m) {
+					k1start+=2;		// ran off the bottom
+				} else if(front) {
+					int k2Offset = vOffset+delta-k1;
+					if(k2Offset>=0 && k2Offset<vLength && v2[k2Offset]!=-1 && x1>=n-v2[k2Offset])
+						return ((long)x1<<32) | y1;
+				}
+			}
+			for(int k2 = -d+k2start; k2<=d-k2end; k2+=2) {	// reverse
+				int k2Offset = vOffset+k2;
+				int x2;
+				if(k2==-d || (k2!=d && v2[k2Offset-1]<v2[k2Offset+1]))
+					x2 = v2[k2Offset+1];
+				else
+					x2 = v2[k2Offset-1]+1;
+				int y2 = x2-k2;
+				while(x2<n && y2<m && a[aTo-x2-1]==b[bTo-y2-1]) {
+					x2++;
+					y2++;
+				}
+				v2[k2Offset]=x2;
+				if(x2>n) {
+					k2end+=2;
+				} else if(y2>m) {
+					k2start+=2;
+				} else if(!front) {
+					int k1Offset = vOffset+delta-k2;
+					if(k1Offset>=0 && k1Offset<vLength && v1[k1Offset]!=-1) {
+						int x1 = v1[k1Offset];
+						int y1 = vOffset+x1-k1Offset;
+						if(x1>=n-x2)
+							return ((long)x1<<32) | y1;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/** follow the trace back from round d, diagonal k, and add the snakes along this path */
+	protected void backtrack(int[] trace, int d, int k, int aFrom, int bFrom, Snakes snakes) {
+		int first = snakes.size();
+		for(; d>0; d--) {
+			int offset = d*(d+1)/2;
+			int prevOffset = (d-1)*d/2;
+			int xEnd = trace[offset+(k+d)/2];
+			int kPrev;
+			int x;
+			if(k==-d || (k!=d && trace[prevOffset+(k+d)/2-1]<trace[prevOffset+(k+d)/2])) {
+				kPrev=k+1;
+				x=trace[prevOffset+(k+d)/2];
+			} else {
+				kPrev=k-1;
+				x=trace[prevOffset+(k+d)/2-1]+1;
+			}
+			if(xEnd>x)
+				snakes.add(aFrom+x, bFrom+x-k, xEnd-x);
+			k=kPrev;
+		}
+		if(trace[0]>0)
+			snakes.add(aFrom, bFrom, trace[0]);
+		snakes.reverse(first);
+	}
+
+	/** matching runs of a diff, as (x, y, length) triples, ordered by position once complete */
+	public static class Snakes {
+
+		protected int[] data = new int[3*64];
+		protected int size = 0;
+
+		public void add(int x, int y, int length) {
+			if(3*size+3>data.length) data = Arrays.copyOf(data, 2*data.length);
+			data[3*size]=x;
+			data[3*size+1]=y;
+			data[3*size+2]=length;
+			size++;
+		}
+
+		/** append the snakes of other, which must start after the last snake of this */
+		public void addAll(Snakes other) {
+			if(3*(size+other.size)>data.length)
+				data = Arrays.copyOf(data, Math.max(2*data.length, 3*(size+other.size)));
+			System.arraycopy(other.data, 0, data, 3*size, 3*other.size);
+			size+=other.size;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int x(int i) {
+			return data[3*i];
+		}
+
+		public int y(int i) {
+			return data[3*i+1];
+		}
+
+		public int length(int i) {
+			return data[3*i+2];
+		}
+
+		/** reverse the order of the snakes from first on */
+		protected void reverse(int first) {
+			for(int i = first, j = size-1; i<j; i++, j--)
+				for(int f = 0; f<3; f++) {
+					int swap = data[3*i+f];
+					data[3*i+f]=data[3*j+f];
+					data[3*j+f]=swap;
+				}
+		}
+
+		/** the gaps between the snakes are the deltas, cf. difflib.myers.MyersDiff.buildRevision() */
+		public List<Delta> toDeltas(List<?> original, List<?> revised) {
+			List<Delta> result = new ArrayList<Delta>();
+			int x = 0;
+			int y = 0;
+			for(int i = 0; i<=size; i++) {
+				int nextX = (i<size ? x(i) : original.size());
+				int nextY = (i<size ? y(i) : revised.size());
+				if(nextX>x || nextY>y) {
+					Chunk o = new Chunk(x, original.subList(x, nextX));
+					Chunk r = new Chunk(y, revised.subList(y, nextY));
+					if(o.size()==0) result.add(new InsertDelta(o,r));
+					else if(r.size()==0) result.add(new DeleteDelta(o,r));
+					else result.add(new ChangeDelta(o,r));
+				}
+				if(i<size) {
+					x=nextX+length(i);
+					y=nextY+length(i);
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package org.acoli.conll.merge;
+
+import java.util.List;
+
+import org.acoli.conll.merge.MyersDiff.Snakes;
+
+import difflib.Delta;
+
+/** diff for files that differ mostly in tokenization, used for -split<br/>
+ * tokens are aligned by their character offsets (ignoring whitespace, comments and empty lines) in one sweep over both
+ * columns: tokens with the same start and end offsets match, the others form n:m deltas up to the next shared token boundary.
+ * Comments and empty lines match if they are equal and at the same offset.
+ * Where the characters differ, the rows from there on are diffed by another engine, up to the first rows it aligns after
+ * its first delta, and the sweep continues at these rows.<br/>
+ * Unlike a token-level diff, equal tokens at different offsets (e.g., a repeated word next to a retokenization) are never
+ * aligned by the sweep. */
+public class OffsetDiff implements DiffEngine {
+
+	/** rows per side that the engine diffs first where the characters differ, doubled until it finds rows to continue at */
+	protected static final int WINDOW = 256;
+
+	/** engine for rows with different characters */
+	protected final DiffEngine fallback;
+
+	public OffsetDiff(DiffEngine fallback) {
+		this.fallback=fallback;
+	}
+
+	public List<Delta> diff(List<String> original, List<String> revised) {
+		StringBuilder chars1 = new StringBuilder();
+		StringBuilder chars2 = new StringBuilder();
+		int[] ends1 = offsets(original, chars1);
+		int[] ends2 = offsets(revised, chars2);
+		String text1 = chars1.toString();
+		String text2 = chars2.toString();
+		chars1 = chars2 = null;
+
+		// at the top of the loop, row i and row j start at aligned offsets, the rows from from1 and from2 on are not aligned yet
+		Snakes snakes = new Snakes();
+		int i = 0;
+		int j = 0;
+		int from1 = 0;
+		int from2 = 0;
+		while(i<ends1.length && j<ends2.length) {
+			int start1 = (i>0 ? ends1[i-1] : 0);
+			int start2 = (j>0 ? ends2[j-1] : 0);
+			boolean empty1 = ends1[i]==start1;
+			boolean empty2 = ends2[j]==start2;
+			if(empty1 && empty2) {
+				if(original.get(i).trim().equals(revised.get(j).trim())) {
+					snakes.add(i++, j++, 1);
+					from1=i;
+					from2=j;
+				} else {		// unmatched, keep comments before empty lines
+					boolean comment1 = original.get(i).trim().startsWith("#");
+					boolean comment2 = revised.get(j).trim().startsWith("#");
+					if(comment1 || !comment2) i++;
+					if(comment2 || !comment1) j++;
+				}
+			} else if(empty1) {
+				i++;
+			} else if(empty2) {
+				j++;
+			} else {			// 1:1 or n:m, up to the next shared boundary
+				int k = i;
+				int l = j;
+				int length1 = ends1[k++]-start1;
+				int length2 = ends2[l++]-start2;
+				while(length1!=length2)
+					if(length1<length2 && k<ends1.length) length1 = ends1[k++]-start1;
+					else if(length2<length1 && l<ends2.length) length2 = ends2[l++]-start2;
+					else break;
+				if(length1==length2 && text1.regionMatches(start1, text2, start2, length1)) {
+					if(k==i+1 && l==j+1 && original.get(i).equals(revised.get(j)))
+						snakes.add(i, j, 1);
+					i=from1=k;
+					j=from2=l;
+				} else {	// including empty rows skipped on one side, so that the other side's tokens stay in their sentence
+					int[] next = resync(original, revised, from1, from2, snakes);
+					i=from1=next[0];
+					j=from2=next[1];
+				}
+			}
+		}
+		return snakes.toDeltas(original, revised);
+	}
+
+	/** diff the rows from i and j by the fallback engine, add its snakes up to the first rows it aligns after its first delta
+	 * and return these rows, or the ends of both columns if there are none */
+	protected int[] resync(List<String> original, List<String> revised, int i, int j, Snakes snakes) {
+		for(int window = WINDOW; ; window*=2) {
+			int to1 = i+Math.min(original.size()-i, window);
+			int to2 = j+Math.min(revised.size()-j, window);
+			boolean last = to1==original.size() && to2==revised.size();
+			List<Delta> deltas = fallback.diff(original.subList(i, to1), revised.subList(j, to2));
+			Snakes found = new Snakes();
+			int x = 0;		// relative to i and j
+			int y = 0;
+			for(Delta delta : deltas) {
+				if(delta.getOriginal().getPosition()>x)
+					found.add(i+x, j+y, delta.getOriginal().getPosition()-x);
+				x = delta.getOriginal().getPosition()+delta.getOriginal().size();
+				y = delta.getRevised().getPosition()+delta.getRevised().size();
+				if(i+x<to1 && j+y<to2) {
+					snakes.addAll(found);
+					return new int[] { i+x, j+y };
+				}
+			}
+			if(last) {
+				if(i+x<to1)
+					found.add(i+x, j+y, to1-i-x);
+				snakes.addAll(found);
+				return new int[] { to1, to2 };
+			}
+		}
+	}
+
+	/** end offsets of the rows in text, i.e., the concatenated characters without whitespace, comments and empty lines */
+	protected static int[] offsets(List<String> forms, StringBuilder text) {
+		int[] result = new int[forms.size()];
+		for(int i = 0; i<result.length; i++) {
+			String form = forms.get(i);
+			if(!form.trim().startsWith("#"))
+				for(int c = 0; c<form.length(); c++)
+					if(!Character.isWhitespace(form.charAt(c))) text.append(form.charAt(c));
+			result[i]=text.length();
+		}
+		return result;
+	}
+}
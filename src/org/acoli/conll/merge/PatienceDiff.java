@@ -0,0 +1,161 @@
+package org.acoli.conll.merge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.acoli.conll.merge.MyersDiff.Snakes;
+
+import difflib.Delta;
+
+/** Myers' diff with patience-style prealignment, for large files on multiple cores<br/>
+ * tokens that occur exactly once in both sequences are candidate anchors, the longest increasing subsequence of
+ * their positions (patience sorting) is locked in as fixed alignment points. The sequences are cut at these anchors
+ * into chunks of at least minChunk tokens, the chunks are diffed independently on a ForkJoinPool and the results
+ * are stitched back in order.<br/>
+ * Within a chunk, the result is that of MyersDiff. Inputs without any cut point (in particular, small files) are
+ * diffed as a whole, so that the deltas are identical to MyersDiff. Otherwise, deltas around the cut points may
+ * differ from a global diff, but only in that an anchor is always aligned.<br/>
+ *
+ * cf. Bram Cohen, patience diff, http://bramcohen.livejournal.com/73318.html
+ */
+public class PatienceDiff implements DiffEngine {
+
+	protected final int parallelism;
+
+	/** memory budget for all parallel MyersDiff tasks, in bytes */
+	protected final long budget;
+
+	/** minimum number of tokens (original and revised) per chunk */
+	protected final int minChunk;
+
+	/** one thread per processor, a quarter of the maximum heap for the diff traces */
+	public PatienceDiff() {
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory()/4);
+	}
+
+	public PatienceDiff(int parallelism, long budget) {
+		this(parallelism, budget, 1<<14);
+	}
+
+	public PatienceDiff(int parallelism, long budget, int minChunk) {
+		this.parallelism=Math.max(1, parallelism);
+		this.budget=budget;
+		this.minChunk=minChunk;
+	}
+
+	public List<Delta> diff(List<String> original, List<String> revised) {
+		int[][] ids = MyersDiff.encode(original, revised);
+		final int[] a = ids[0];
+		final int[] b = ids[1];
+		int[] cuts = cuts(anchors(a,b), a.length, b.length);
+
+		Snakes snakes = new Snakes();
+		int chunks = cuts.length/2-1;
+		if(chunks==1) {
+			new MyersDiff(budget).diff(a, 0, a.length, b, 0, b.length, snakes);
+			return snakes.toDeltas(original, revised);
+		}
+
+		List<Callable<Snakes>> tasks = new ArrayList<Callable<Snakes>>(chunks);
+		final long taskBudget = budget/parallelism;
+		for(int c = 0; c<chunks; c++) {
+			final int aFrom = cuts[2*c];
+			final int bFrom = cuts[2*c+1];
+			final int aTo = cuts[2*c+2];
+			final int bTo = cuts[2*c+3];
+			tasks.add(new Callable<Snakes>() {
+				public Snakes call() {
+					Snakes result = new Snakes();
+					new MyersDiff(taskBudget).diff(a, aFrom, aTo, b, bFrom, bTo, result);
+					return result;
+				}
+			});
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for(Future<Snakes> result : pool.invokeAll(tasks))
+				snakes.addAll(result.get());
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			if(e.getCause() instanceof Error) throw (Error)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			pool.shutdown();
+		}
+		return snakes.toDeltas(original, revised);
+	}
+
+	/** positions of tokens that are unique in a and in b, as x, y pairs, restricted to the longest sequence with
+	 * increasing x and y */
+	protected static int[] anchors(int[] a, int[] b) {
+		int ids = 0;
+		for(int id : a) if(id>=ids) ids=id+1;
+		for(int id : b) if(id>=ids) ids=id+1;
+		int[] countA = new int[ids];
+		int[] countB = new int[ids];
+		int[] posB = new int[ids];
+		for(int x = 0; x<a.length; x++) countA[a[x]]++;
+		for(int y = 0; y<b.length; y++) {
+			countB[b[y]]++;
+			posB[b[y]]=y;
+		}
+
+		// candidates in order of x
+		int[] xs = new int[a.length];
+		int[] ys = new int[a.length];
+		int n = 0;
+		for(int x = 0; x<a.length; x++)
+			if(countA[a[x]]==1 && countB[a[x]]==1) {
+				xs[n]=x;
+				ys[n++]=posB[a[x]];
+			}
+
+		// patience sorting: tails[l] is the candidate with the smallest y that ends an increasing run of length l+1
+		int[] tails = new int[n];
+		int[] prev = new int[n];
+		int length = 0;
+		for(int i = 0; i<n; i++) {
+			int lo = 0;
+			int hi = length;
+			while(lo<hi) {
+				int mid = (lo+hi)>>>1;
+				if(ys[tails[mid]]<ys[i]) lo=mid+1;
+				else hi=mid;
+			}
+			prev[i] = (lo>0 ? tails[lo-1] : -1);
+			tails[lo]=i;
+			if(lo==length) length++;
+		}
+		int[] result = new int[2*length];
+		for(int i = (length>0 ? tails[length-1] : -1), l = length-1; i>=0; i=prev[i], l--) {
+			result[2*l]=xs[i];
+			result[2*l+1]=ys[i];
+		}
+		return result;
+	}
+
+	/** chunk boundaries as x, y pairs, from (0,0) to (n,m), cut at anchors that are at least minChunk tokens apart */
+	protected int[] cuts(int[] anchors, int n, int m) {
+		int[] result = new int[anchors.length+4];
+		int size = 2;
+		for(int i = 0; i<anchors.length; i+=2) {
+			int x = anchors[i];
+			int y = anchors[i+1];
+			if(x-result[size-2]+y-result[size-1]>=minChunk && n-x+m-y>=minChunk) {
+				result[size++]=x;
+				result[size++]=y;
+			}
+		}
+		result[size++]=n;
+		result[size++]=m;
+		return Arrays.copyOf(result, size);
+	}
+}
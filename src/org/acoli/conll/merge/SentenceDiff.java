@@ -0,0 +1,119 @@
+package org.acoli.conll.merge;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.acoli.conll.merge.MyersDiff.Snakes;
+
+import difflib.Delta;
+
+/** two-level diff for sentence-segmented files<br/>
+ * sentences (up to and including the next empty line, cf. merge()) are mapped to int ids by their FORM sequence,
+ * the sentence ids are aligned with MyersDiff, and a token-level MyersDiff is only run over the stretches of
+ * sentences that could not be aligned. Identical sentences thus cost O(#tokens) for hashing, and the diff runs
+ * over O(#sentences) plus the local stretches.<br/>
+ * Sentences are compared token by token, without normalization, as the token-level diff would do.
+ * The result is a shortest edit script within every unaligned stretch, but it may differ from a global token-level
+ * diff where the latter would align a sentence differently. */
+public class SentenceDiff implements DiffEngine {
+
+	/** memory budget for MyersDiff, in bytes */
+	protected final long budget;
+
+	public SentenceDiff() {
+		this(Runtime.getRuntime().maxMemory()/4);
+	}
+
+	public SentenceDiff(long budget) {
+		this.budget=budget;
+	}
+
+	public List<Delta> diff(List<String> original, List<String> revised) {
+		int[][] ids = MyersDiff.encode(original, revised);
+		int[] a = ids[0];
+		int[] b = ids[1];
+		int[] aEnds = sentences(original);
+		int[] bEnds = sentences(revised);
+
+		// sentence ids, shared between a and b
+		HashMap<Long,Integer> firstId = new HashMap<Long,Integer>();
+		int[] reprs = new int[3*64];	// per sentence id: 0 for a, 1 for b, start, end
+		int[] aIds = new int[aEnds.length];
+		int[] bIds = new int[bEnds.length];
+		int size = 0;
+		for(int s = 0; s<aIds.length+bIds.length; s++) {
+			boolean isA = s<aIds.length;
+			int[] seq = (isA ? a : b);
+			int[] ends = (isA ? aEnds : bEnds);
+			int i = (isA ? s : s-aIds.length);
+			int from = (i>0 ? ends[i-1] : 0);
+			int to = ends[i];
+			long hash = hash(seq, from, to);
+			Integer id = firstId.get(hash);
+			while(id!=null && !equals(seq, from, to, (reprs[3*id]==0 ? a : b), reprs[3*id+1], reprs[3*id+2]))
+				id = firstId.get(++hash);	// collision, probe
+			if(id==null) {
+				if(3*size+3>reprs.length) reprs = Arrays.copyOf(reprs, 2*reprs.length);
+				reprs[3*size] = (isA ? 0 : 1);
+				reprs[3*size+1] = from;
+				reprs[3*size+2] = to;
+				id=size++;
+				firstId.put(hash, id);
+			}
+			if(isA) aIds[i]=id;
+			else bIds[i]=id;
+		}
+
+		// align sentences, then diff tokens in the gaps
+		MyersDiff myers = new MyersDiff(budget);
+		Snakes sentences = new Snakes();
+		myers.diff(aIds, 0, aIds.length, bIds, 0, bIds.length, sentences);
+		Snakes snakes = new Snakes();
+		int x = 0;
+		int y = 0;
+		for(int i = 0; i<=sentences.size(); i++) {
+			int nextX = (i<sentences.size() ? sentences.x(i) : aIds.length);
+			int nextY = (i<sentences.size() ? sentences.y(i) : bIds.length);
+			int aFrom = (x>0 ? aEnds[x-1] : 0);
+			int bFrom = (y>0 ? bEnds[y-1] : 0);
+			int aTo = (nextX>0 ? aEnds[nextX-1] : 0);
+			int bTo = (nextY>0 ? bEnds[nextY-1] : 0);
+			if(aTo>aFrom || bTo>bFrom)
+				myers.diff(a, aFrom, aTo, b, bFrom, bTo, snakes);
+			if(i<sentences.size()) {
+				x = nextX+sentences.length(i);
+				y = nextY+sentences.length(i);
+				int to = (x>0 ? aEnds[x-1] : 0);
+				snakes.add(aTo, bTo, to-aTo);
+			}
+		}
+		return snakes.toDeltas(original, revised);
+	}
+
+	/** end positions (exclusive) of the sentences, every sentence ends after an empty line or at the end */
+	protected static int[] sentences(List<String> forms) {
+		int[] result = new int[64];
+		int size = 0;
+		for(int i = 0; i<forms.size(); i++)
+			if(i==forms.size()-1 || forms.get(i).trim().equals("")) {
+				if(size==result.length) result = Arrays.copyOf(result, 2*size);
+				result[size++]=i+1;
+			}
+		return Arrays.copyOf(result, size);
+	}
+
+	protected static long hash(int[] seq, int from, int to) {
+		long h = to-from;
+		for(int i = from; i<to; i++)
+			h = 1000003*h + seq[i];
+		return h ^ (h>>>32);
+	}
+
+	protected static boolean equals(int[] seq, int from, int to, int[] other, int otherFrom, int otherTo) {
+		if(to-from!=otherTo-otherFrom) return false;
+		for(int i = from; i<to; i++)
+			if(seq[i]!=other[otherFrom++]) return false;
+		return true;
+	}
+}